@@ -0,0 +1,144 @@
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writes VM commands in a compact binary form.
+ *
+ * The output starts with the magic bytes "JVMB" and a version byte. Every
+ * command is then a one-byte opcode followed by its operands:
+ * arithmetic commands use their Command ordinal as opcode, push and pop
+ * combine a base opcode with the Segment ordinal, and numeric operands are
+ * zigzag encoded varints. Function and label names go through a per-file
+ * constant pool: a name is written in full (varint 0, varint length, UTF-8
+ * bytes) the first time it is used and as varint (pool index + 1) after that.
+ * VMDecoder turns the output back into the exact .vm text.
+ */
+class BinaryVMWriter extends VMWriter {
+
+    static final byte[] MAGIC = { 'J', 'V', 'M', 'B' };
+    static final int VERSION = 1;
+
+    // Opcodes. Arithmetic commands use 0 to 8, their Command ordinal.
+    static final int PUSH = 0x10; // Plus the Segment ordinal.
+    static final int POP = 0x20; // Plus the Segment ordinal.
+    static final int LABEL = 0x30;
+    static final int GOTO = 0x31;
+    static final int IF_GOTO = 0x32;
+    static final int FUNCTION = 0x33;
+    static final int CALL = 0x34;
+    static final int RETURN = 0x35;
+
+    private final Map<String, Integer> constantPool = new HashMap<>();
+
+    public BinaryVMWriter(String outputFile, FlushPolicy flushPolicy) throws IOException {
+        super(outputFile, flushPolicy);
+        writeHeader();
+    }
+
+    BinaryVMWriter(WritableByteChannel channel, FlushPolicy flushPolicy) {
+        super(channel, flushPolicy);
+        writeHeader();
+    }
+
+    private void writeHeader() {
+        append(MAGIC);
+        appendByte(VERSION);
+    }
+
+    @Override
+    public void writePush(Segment segment, int index) throws IOException {
+        appendByte(PUSH + segment.ordinal());
+        appendVarint(zigzag(index));
+        endCommand();
+    }
+
+    @Override
+    public void writePop(Segment segment, int index) throws IOException {
+        appendByte(POP + segment.ordinal());
+        appendVarint(zigzag(index));
+        endCommand();
+    }
+
+    @Override
+    public void writeArithmetic(Command command) throws IOException {
+        appendByte(command.ordinal());
+        endCommand();
+    }
+
+    @Override
+    public void writeLabel(String label) throws IOException {
+        appendByte(LABEL);
+        appendName(label);
+        endCommand();
+    }
+
+    @Override
+    public void writeGoto(String label) throws IOException {
+        appendByte(GOTO);
+        appendName(label);
+        endCommand();
+    }
+
+    @Override
+    public void writeIf(String label) throws IOException {
+        appendByte(IF_GOTO);
+        appendName(label);
+        endCommand();
+    }
+
+    @Override
+    public void writeCall(String name, int nArgs) throws IOException {
+        appendByte(CALL);
+        appendName(name);
+        appendVarint(zigzag(nArgs));
+        endCommand();
+    }
+
+    @Override
+    public void writeFunction(String name, int nLocals) throws IOException {
+        appendByte(FUNCTION);
+        appendName(name);
+        appendVarint(zigzag(nLocals));
+        endCommand();
+    }
+
+    @Override
+    public void writeReturn() throws IOException {
+        appendByte(RETURN);
+        endCommand();
+    }
+
+    /**
+     * Appends a name through the constant pool.
+     */
+    private void appendName(String name) {
+        Integer index = constantPool.get(name);
+        if (index != null) {
+            appendVarint(index + 1);
+            return;
+        }
+        constantPool.put(name, constantPool.size());
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        appendVarint(0);
+        appendVarint(bytes.length);
+        append(bytes);
+    }
+
+    /**
+     * Appends an unsigned value seven bits at a time, low bits first.
+     */
+    private void appendVarint(int value) {
+        while ((value & ~0x7F) != 0) {
+            appendByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        appendByte(value);
+    }
+
+    private static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+}
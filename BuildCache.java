@@ -0,0 +1,155 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * A persistent cache of compiler output, keyed by a hash of the source
+ * contents, the compiler version and the options that affect the output.
+ * Entries are plain files in the cache directory; their modification time
+ * records their last use, and the least recently used entries are evicted
+ * when the cache grows beyond its size limit. Safe to use from several
+ * worker threads at once.
+ */
+class BuildCache {
+
+    private static final String ENTRY_SUFFIX = ".out";
+
+    private final Path directory;
+    private final long sizeLimit;
+    private final AtomicInteger hits = new AtomicInteger();
+    private final AtomicInteger misses = new AtomicInteger();
+    private int evictions;
+
+    /**
+     * Opens a cache, creating its directory if needed.
+     *
+     * @param directory the directory holding the cache entries
+     * @param sizeLimit the maximum total size of the entries in bytes, or 0 for no limit
+     * @throws IOException if the directory cannot be created
+     */
+    public BuildCache(Path directory, long sizeLimit) throws IOException {
+        this.directory = directory;
+        this.sizeLimit = sizeLimit;
+        Files.createDirectories(directory);
+    }
+
+    /**
+     * Computes the cache key of a source file.
+     *
+     * @param source      the contents of the source file
+     * @param fingerprint the compiler version and output affecting options
+     * @return the key, as a hex string
+     */
+    public static String key(byte[] source, String fingerprint) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(fingerprint.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            byte[] hash = digest.digest(source);
+            StringBuilder key = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                key.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return key.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    /**
+     * Returns the cached output for a key and marks the entry as recently
+     * used, or returns null on a miss.
+     */
+    public byte[] lookup(String key) throws IOException {
+        Path entry = directory.resolve(key + ENTRY_SUFFIX);
+        try {
+            byte[] output = Files.readAllBytes(entry);
+            Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+            hits.incrementAndGet();
+            return output;
+        } catch (NoSuchFileException e) {
+            misses.incrementAndGet();
+            return null;
+        }
+    }
+
+    /**
+     * Stores the output for a key. The entry appears atomically, so that
+     * concurrent readers never see a partial entry.
+     */
+    public void store(String key, byte[] output) throws IOException {
+        Path entry = directory.resolve(key + ENTRY_SUFFIX);
+        Path temp = Files.createTempFile(directory, key, ".tmp");
+        try {
+            Files.write(temp, output);
+            Files.move(temp, entry, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Deletes least recently used entries until the cache fits its size
+     * limit. Must not run while other threads use the cache.
+     */
+    public void evict() throws IOException {
+        if (sizeLimit <= 0) {
+            return;
+        }
+        List<Path> entries = listEntries();
+        entries.sort(Comparator.comparing(BuildCache::lastModified));
+
+        long total = 0;
+        for (Path entry : entries) {
+            total += Files.size(entry);
+        }
+        for (Path entry : entries) {
+            if (total <= sizeLimit) {
+                break;
+            }
+            total -= Files.size(entry);
+            Files.deleteIfExists(entry);
+            evictions++;
+        }
+    }
+
+    /**
+     * Returns a one-line summary of the cache statistics of this run.
+     */
+    public String statistics() throws IOException {
+        long total = 0;
+        List<Path> entries = listEntries();
+        for (Path entry : entries) {
+            total += Files.size(entry);
+        }
+        return "Cache: " + hits.get() + " hit(s), " + misses.get() + " miss(es), " + evictions
+                + " evicted, " + entries.size() + " entries (" + total + " bytes) in " + directory;
+    }
+
+    private List<Path> listEntries() throws IOException {
+        try (Stream<Path> paths = Files.list(directory)) {
+            return paths.filter(path -> path.toString().endsWith(ENTRY_SUFFIX))
+                    .collect(Collectors.toCollection(ArrayList::new));
+        }
+    }
+
+    private static FileTime lastModified(Path path) {
+        try {
+            return Files.getLastModifiedTime(path);
+        } catch (IOException e) {
+            return FileTime.fromMillis(0);
+        }
+    }
+}
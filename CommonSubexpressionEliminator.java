@@ -0,0 +1,354 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Computes each value once per basic block, by numbering the values the
+ * code pushes: two expressions get the same number when they apply the same
+ * operation to values with the same numbers.
+ *
+ * An expression whose value a local or argument still holds is replaced with
+ * a push of it. One that is computed again otherwise is kept in a fresh local
+ * after its first computation, when it is long enough for that to pay off.
+ * Setting pointer 1 to the address it already holds is dropped, together
+ * with the computation of the address, so that a[i] = a[i] + 1 computes the
+ * address of a[i] once.
+ *
+ * Fields, statics and array elements are numbered with the state of the
+ * heap, which every call and every pop into this, that or static changes.
+ * Reads of the screen and keyboard through a constant address are never
+ * taken as the same value, since the hardware may change them at any time.
+ * Instructions are only removed when no call or pop runs among them, such
+ * as the store of an inline Memory.poke between the operands of an add.
+ * A block ends at every label, jump and return.
+ */
+class CommonSubexpressionEliminator {
+
+    // Instructions a reused value must take for a fresh local to pay off,
+    // since keeping it costs a pop and a push.
+    private static final int MIN_KEPT_SIZE = 4;
+
+    // The screen and keyboard are mapped from here on. Reading them is
+    // reading a device, so no two reads have the same value.
+    private static final int DEVICE_MEMORY = 16384;
+
+    private int saved;
+
+    // A value on the stack: its number, and the instructions computing it.
+    private static final class Value {
+        final int number;
+        final int start;
+        final int end;
+        final boolean setsPointer; // Whether the instructions set pointer 1 for an element.
+
+        Value(int number, int start, int end, boolean setsPointer) {
+            this.number = number;
+            this.start = start;
+            this.end = end;
+            this.setsPointer = setsPointer;
+        }
+    }
+
+    // The state of the current basic block.
+    private final Map<String, Integer> numbers = new HashMap<>();
+    private final Map<Integer, Integer> variables = new HashMap<>(); // Local or argument to its value.
+    private final Map<Integer, Integer> holders = new HashMap<>(); // Value to the variable holding it.
+    private final Map<Integer, Value> computed = new HashMap<>(); // Value to its first computation.
+    private final Map<Integer, Integer> kept = new HashMap<>(); // Value to the local keeping it.
+    private final Map<Integer, Integer> constants = new HashMap<>(); // Value of a constant to the constant.
+    private final List<Value> stack = new ArrayList<>();
+    private int heap;
+    private int pointer; // Value of pointer 1, or -1.
+    private Value pointerSet; // The address of the pop into pointer 1 right before, or null.
+    private int lastEffect; // Index of the last call or pop, or -1.
+    private int effectBeforePointer; // The last effect before that pop into pointer 1.
+    private int slots;
+
+    // The rewrite of the subroutine.
+    private int firstSlot;
+    private int nextNumber;
+    private int maxSlots;
+    private final List<int[]> edits = new ArrayList<>(); // Start, end, local pushed instead or -1.
+    private final Map<Integer, Integer> keeps = new HashMap<>(); // Index to the local kept before it.
+
+    /**
+     * Returns the number of instructions saved so far.
+     */
+    public int getSaved() {
+        return saved;
+    }
+
+    /**
+     * Optimizes the code of one subroutine.
+     *
+     * @param code the code to optimize; it is not modified
+     * @return the optimized code, or the same code if nothing is computed twice
+     */
+    public VMCode optimize(VMCode code) {
+        edits.clear();
+        keeps.clear();
+        firstSlot = code.getLocalCount();
+        maxSlots = 0;
+        startBlock();
+        for (int i = 0; i < code.size(); i++) {
+            if (!scan(code, i)) {
+                return code;
+            }
+        }
+        if (edits.isEmpty()) {
+            return code;
+        }
+
+        // Outer edits first; a dropped address wins over the same address
+        // replaced before it was found to be in pointer 1 already.
+        edits.sort((a, b) -> a[0] != b[0] ? Integer.compare(a[0], b[0])
+                : a[1] != b[1] ? Integer.compare(b[1], a[1]) : Integer.compare(a[2], b[2]));
+        VMCode out = code.emptyCopy();
+        out.setLocalCount(code.getLocalCount() + maxSlots);
+        int e = 0;
+        for (int i = 0; i < code.size(); i++) {
+            Integer local = keeps.get(i);
+            if (local != null) {
+                out.addPop(Segment.LOCAL, local);
+                out.addPush(Segment.LOCAL, local);
+            }
+            while (e < edits.size() && edits.get(e)[1] <= i) {
+                e++; // Inside an edit already made.
+            }
+            if (e < edits.size() && edits.get(e)[0] == i) {
+                int[] edit = edits.get(e);
+                if (edit[2] >= 0) {
+                    out.addPush(edit[2] >> 16 == 0 ? Segment.LOCAL : Segment.ARG, edit[2] & 0xFFFF);
+                }
+                i = edit[1] - 1;
+                continue;
+            }
+            out.copy(code, i);
+        }
+        saved += code.size() - out.size();
+        return out;
+    }
+
+    /**
+     * Follows one instruction.
+     *
+     * @return false if the code pops more values than it pushed in the block
+     */
+    private boolean scan(VMCode code, int i) {
+        Value pointerAddress = pointerSet;
+        pointerSet = null;
+        switch (code.opcode(i)) {
+            case VMCode.PUSH:
+                Segment segment = code.segment(i);
+                int index = code.operand(i);
+                switch (segment) {
+                    case CONST:
+                        int constant = number("c" + index);
+                        constants.put(constant, index);
+                        stack.add(new Value(constant, i, i + 1, false));
+                        break;
+                    case LOCAL:
+                    case ARG:
+                        Integer value = variables.get(variable(segment, index));
+                        if (value == null) {
+                            value = nextNumber++;
+                            variables.put(variable(segment, index), value);
+                        }
+                        stack.add(new Value(value, i, i + 1, false));
+                        break;
+                    case THIS:
+                    case STATIC:
+                        stack.add(new Value(number(segment + " " + index + " " + heap), i, i + 1, false));
+                        break;
+                    case THAT:
+                        Integer base = constants.get(pointer);
+                        boolean device = base != null && base + index >= DEVICE_MEMORY;
+                        int element = pointer < 0 || device ? nextNumber++
+                                : number("that " + index + " " + pointer + " " + heap);
+                        if (pointerAddress != null) {
+                            // The element and its address are taken together,
+                            // so setting pointer 1 is no side effect of it.
+                            lastEffect = effectBeforePointer;
+                            reuse(new Value(element, pointerAddress.start, i + 1, true));
+                        } else {
+                            stack.add(new Value(element, i, i + 1, false));
+                        }
+                        break;
+                    default:
+                        stack.add(new Value(nextNumber++, i, i + 1, false));
+                        break;
+                }
+                break;
+            case VMCode.ARITHMETIC:
+                Command command = code.command(i);
+                boolean unary = command == Command.NEG || command == Command.NOT;
+                if (stack.size() < (unary ? 1 : 2)) {
+                    return false;
+                }
+                Value right = pop();
+                Value left = unary ? right : pop();
+                reuse(new Value(number(command + " " + left.number + " " + right.number), left.start, i + 1,
+                        left.setsPointer || right.setsPointer));
+                break;
+            case VMCode.CALL:
+                int nArgs = code.operand(i);
+                if (stack.size() < nArgs) {
+                    return false;
+                }
+                if (nArgs == 2 && code.callee(i).equals("Math.multiply")) {
+                    // Math.multiply has no side effect, but may use pointer 1
+                    // for its own arrays.
+                    Value factor = pop();
+                    Value multiplicand = pop();
+                    pointer = -1;
+                    reuse(new Value(number("* " + multiplicand.number + " " + factor.number), multiplicand.start,
+                            i + 1, multiplicand.setsPointer || factor.setsPointer));
+                    break;
+                }
+                int start = i;
+                for (int argument = 0; argument < nArgs; argument++) {
+                    start = pop().start;
+                }
+                // The callee may change the heap, pointer 1 and the temps.
+                heap++;
+                pointer = -1;
+                lastEffect = i;
+                stack.add(new Value(nextNumber++, start, i + 1, false));
+                break;
+            case VMCode.POP:
+                if (stack.isEmpty()) {
+                    return false;
+                }
+                pop(code, i, pop());
+                lastEffect = i;
+                break;
+            default:
+                startBlock();
+                break;
+        }
+        return true;
+    }
+
+    private void pop(VMCode code, int i, Value value) {
+        Segment segment = code.segment(i);
+        int index = code.operand(i);
+        switch (segment) {
+            case LOCAL:
+            case ARG:
+                variables.put(variable(segment, index), value.number);
+                holders.put(value.number, variable(segment, index));
+                break;
+            case POINTER:
+                if (index == 0) {
+                    heap++;
+                } else if (value.number == pointer && value.start > lastEffect && !value.setsPointer
+                        && !keepsWithin(value.start, value.end)) {
+                    // Pointer 1 already holds the address.
+                    edits.add(new int[] {value.start, value.end, -1});
+                    edits.add(new int[] {i, i + 1, -1});
+                } else {
+                    pointer = value.number;
+                    pointerSet = value;
+                    effectBeforePointer = lastEffect;
+                }
+                break;
+            case TEMP:
+                break;
+            default:
+                heap++;
+                break;
+        }
+    }
+
+    /**
+     * Pushes a value computed by an operation, replacing its computation when
+     * the value is already at hand. A computation with a side effect in it,
+     * even one between its operands, is never replaced.
+     */
+    private void reuse(Value value) {
+        stack.add(value);
+        if (value.start <= lastEffect || keepsWithin(value.start, value.end)) {
+            return;
+        }
+        Integer holder = holders.get(value.number);
+        if (holder != null && variables.get(holder) == value.number) {
+            replace(value, holder);
+            return;
+        }
+        Integer local = kept.get(value.number);
+        if (local != null) {
+            replace(value, local);
+            return;
+        }
+        Value first = computed.get(value.number);
+        if (first == null || first.end > value.start || isEdited(first.end - 1)) {
+            computed.put(value.number, value);
+        } else if (value.end - value.start >= MIN_KEPT_SIZE) {
+            local = firstSlot + slots++;
+            maxSlots = Math.max(maxSlots, slots);
+            kept.put(value.number, local);
+            keeps.put(first.end, local);
+            replace(value, local);
+        }
+    }
+
+    private void replace(Value value, int variable) {
+        edits.add(new int[] {value.start, value.end, variable});
+        if (value.setsPointer) {
+            pointer = -1;
+        }
+    }
+
+    private Value pop() {
+        return stack.remove(stack.size() - 1);
+    }
+
+    private void startBlock() {
+        numbers.clear();
+        variables.clear();
+        holders.clear();
+        computed.clear();
+        kept.clear();
+        constants.clear();
+        stack.clear();
+        heap = 0;
+        pointer = -1;
+        pointerSet = null;
+        lastEffect = -1;
+        slots = 0;
+    }
+
+    private int number(String key) {
+        Integer number = numbers.get(key);
+        if (number == null) {
+            number = nextNumber++;
+            numbers.put(key, number);
+        }
+        return number;
+    }
+
+    // Packs a local or argument into one number, the way edits keep it.
+    private static int variable(Segment segment, int index) {
+        return (segment == Segment.ARG ? 1 << 16 : 0) | index;
+    }
+
+    private boolean isEdited(int index) {
+        for (int[] edit : edits) {
+            if (edit[0] <= index && index < edit[1]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Whether a value is kept in a local between instructions of a range.
+    private boolean keepsWithin(int start, int end) {
+        for (int index : keeps.keySet()) {
+            if (start < index && index <= end) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -1,34 +1,189 @@
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 
 public class CompilationEngine {
+    // Lower case keyword names, by ordinal, for primitive types.
+    private static final String[] KEYWORD_NAMES = new String[KeywordType.values().length];
+
+    static {
+        for (KeywordType keyword : KeywordType.values()) {
+            KEYWORD_NAMES[keyword.ordinal()] = keyword.toString().toLowerCase();
+        }
+    }
+
     private JackTokenizer tokenizer;
     private VMWriter vmWriter;
+    private VMCodeBuilder codeBuilder; // Records the code when it is lowered at close, else null.
+    private VMWriter output; // The writer the recorded code is lowered through.
+    private VMOptimizer optimizer; // Optimizes the recorded code, or null.
+    private List<VMCode> classCode; // The recorded code once it is complete, optimized if asked for.
+    private boolean branches; // Compiles conditions straight to jumps on the recorded code.
+    private LoopInvariantHoister hoister; // Hoists invariant expressions out of while loops, or null.
+    private Intrinsics intrinsics; // Expands calls to small OS subroutines inline, or null.
+    private Map<String, Integer> stringPool; // Number of each string literal kept in a static, or null.
+    private int pooledUses; // Uses of pooled literals,
+    private int pooledInstructions; // the VM instructions they and the pool take
+    private int unpooledInstructions; // and how many they take unpooled.
+    private int branchInstructions; // Control flow instructions written for if and while
+    private int plainBranchInstructions; // and how many the plain layout takes.
     private SymbolTable symbolTable;
+    private IdentifierPool identifiers;
     private String className;
+    private int classNameId;
+    private int thisId; // ID of "this", the name of a method's object argument.
+    private String labelPrefix;
     private String currentFunction;
     private int labelCounter;
 
 
     public CompilationEngine(String inputFile, String outputFile) throws IOException {
-        tokenizer = new JackTokenizer(inputFile);
-        vmWriter = new VMWriter(outputFile);
-        symbolTable = new SymbolTable();
+        this(inputFile, outputFile, new CompilerOptions());
+    }
+
+
+    public CompilationEngine(String inputFile, String outputFile, CompilerOptions options) throws IOException {
+        this(options.isMemoryMapped() ? new JackTokenizer(SourceBuffer.open(inputFile), options.isSwar())
+                : new JackTokenizer(inputFile),
+                options.getOutputFormat() == OutputFormat.BINARY
+                        ? new BinaryVMWriter(outputFile, options.getFlushPolicy())
+                        : new VMWriter(outputFile, options.getFlushPolicy()),
+                options);
+    }
+
+
+    /**
+     * Creates an engine over an existing tokenizer and writer, for sources and
+     * outputs that are not files. Closing the engine closes the writer.
+     */
+    public CompilationEngine(JackTokenizer tokenizer, VMWriter vmWriter) {
+        this(tokenizer, vmWriter, new CompilerOptions());
+    }
+
+
+    /**
+     * Creates an engine over an existing tokenizer and writer. When the options
+     * ask for the intermediate code, the commands are recorded as VMCode and
+     * only lowered through the writer when the engine is closed.
+     */
+    public CompilationEngine(JackTokenizer tokenizer, VMWriter vmWriter, CompilerOptions options) {
+        this.tokenizer = tokenizer;
+        if (options.usesIntermediateCode()) {
+            this.output = vmWriter;
+            this.codeBuilder = new VMCodeBuilder();
+            this.vmWriter = codeBuilder;
+            if (options.isPoolStrings()) {
+                this.stringPool = new LinkedHashMap<>();
+            }
+            if (options.isOptimize()) {
+                this.optimizer = new VMOptimizer(options);
+                this.branches = !options.getDisabled().contains("branches");
+                this.hoister = options.getDisabled().contains("loop-invariants") ? null : new LoopInvariantHoister();
+                this.intrinsics = options.getDisabled().contains("intrinsics") ? null
+                        : Intrinsics.withDefaults(options.getDisabled());
+            }
+        } else {
+            this.vmWriter = vmWriter;
+        }
+        identifiers = tokenizer.getIdentifierPool();
+        thisId = identifiers.intern("this");
+        symbolTable = new SymbolTable(identifiers);
         className = "";
         currentFunction = "";
         labelCounter = 0;
     }
 
 
+    /**
+     * Creates an engine that only records the code of a class, for builds
+     * that take the code with getCode and write it together with the code of
+     * other classes.
+     */
+    public CompilationEngine(JackTokenizer tokenizer, CompilerOptions options) {
+        this(tokenizer, null, options);
+        if (codeBuilder == null) {
+            throw new IllegalArgumentException("Recording the code needs the intermediate code option");
+        }
+    }
+
+
     public void close() throws IOException {
-        vmWriter.close();
+        if (codeBuilder == null) {
+            vmWriter.close();
+            return;
+        }
+        if (output == null) {
+            return;
+        }
+        try {
+            for (VMCode code : getCode()) {
+                code.lower(output);
+            }
+        } finally {
+            output.close();
+        }
+    }
+
+
+    /**
+     * Returns the recorded code of each subroutine of the class, optimized
+     * when the options ask for it, once the class has been compiled.
+     */
+    public List<VMCode> getCode() {
+        if (classCode == null) {
+            classCode = codeBuilder.getSubroutines();
+            if (optimizer != null) {
+                classCode = optimizer.optimize(classCode);
+            }
+        }
+        return classCode;
+    }
+
+
+    /**
+     * Returns what the optimizer did, one line per pass, once the engine is
+     * closed. Empty when not optimizing or pooling strings.
+     */
+    public List<String> getOptimizationReport() {
+        if (optimizer == null && stringPool == null) {
+            return Collections.emptyList();
+        }
+        List<String> report = new ArrayList<>();
+        if (stringPool != null) {
+            report.add(String.format("String pooling kept %d literals in statics for %d uses, "
+                    + "taking %d VM instructions instead of %d", stringPool.size(), pooledUses, pooledInstructions,
+                    unpooledInstructions));
+        }
+        if (optimizer == null) {
+            return report;
+        }
+        if (branches) {
+            report.add(String.format("Branch code generation wrote %d control flow VM instructions instead of %d",
+                    branchInstructions, plainBranchInstructions));
+        }
+        if (intrinsics != null) {
+            report.add(String.format("Intrinsics expanded %d OS calls inline", intrinsics.getExpanded()));
+        }
+        if (hoister != null) {
+            report.add(String.format("Loop-invariant code motion hoisted %d expressions out of %d loops, "
+                    + "and %d further out of enclosing loops", hoister.getHoisted(), hoister.getLoops(),
+                    hoister.getMoved()));
+        }
+        report.addAll(optimizer.getReport());
+        return report;
     }
 
 
     public void compileClass() throws IOException {
         tokenizer.advance();
         tokenizer.advance();
-        className = tokenizer.identifier();
+        classNameId = tokenizer.identifierId();
+        className = identifiers.name(classNameId);
+        labelPrefix = className + "_";
         tokenizer.advance();
         tokenizer.advance();
 
@@ -43,26 +198,59 @@ public class CompilationEngine {
                         tokenizer.keyword() == KeywordType.METHOD)) {
             compileSubroutine();
         }
+        if (stringPool != null) {
+            writeStringPool();
+        }
 
         tokenizer.advance(); // Skip closing '}'
     }
 
 
+    /**
+     * Writes a function for each pooled string literal, which builds the
+     * string on its first call and returns it from its static variable from
+     * then on.
+     */
+    private void writeStringPool() throws IOException {
+        int firstStatic = symbolTable.varCount(KindType.STATIC);
+        for (Map.Entry<String, Integer> entry : stringPool.entrySet()) {
+            String str = entry.getKey();
+            int index = firstStatic + entry.getValue();
+            String builtLabel = generateLabel();
+            vmWriter.writeFunction(pooledStringFunction(entry.getValue()), 0);
+            codeBuilder.current().setArgumentCount(0);
+            vmWriter.writePush(Segment.STATIC, index);
+            vmWriter.writeIf(builtLabel);
+            writeString(str);
+            vmWriter.writePop(Segment.STATIC, index);
+            vmWriter.writeLabel(builtLabel);
+            vmWriter.writePush(Segment.STATIC, index);
+            vmWriter.writeReturn();
+            pooledInstructions += 2 * str.length() + 8;
+        }
+    }
+
+
+    // Jack names cannot contain '$', so the name is free in every class.
+    private String pooledStringFunction(int number) {
+        return className + ".string$" + number;
+    }
+
+
     private void compileClassVarDec() throws IOException {
         KindType kind = (tokenizer.keyword() == KeywordType.STATIC) ? KindType.STATIC : KindType.FIELD;
         tokenizer.advance();
 
-        String type = (tokenizer.tokenType() == TokenType.KEYWORD) ? tokenizer.keyword().toString().toLowerCase()
-                : tokenizer.identifier();
+        int type = compileType();
         tokenizer.advance();
 
-        String name = tokenizer.identifier();
+        int name = tokenizer.identifierId();
         symbolTable.define(name, type, kind);
         tokenizer.advance();
 
         while (tokenizer.tokenType() == TokenType.SYMBOL && tokenizer.symbol() == ',') {
             tokenizer.advance();
-            name = tokenizer.identifier();
+            name = tokenizer.identifierId();
             symbolTable.define(name, type, kind);
             tokenizer.advance();
         }
@@ -75,11 +263,9 @@ public class CompilationEngine {
         }
 
         while (tokenizer.hasMoreTokens()) {
-            String type;
-            if (tokenizer.tokenType() == TokenType.KEYWORD) {
-                type = tokenizer.keyword().toString().toLowerCase();
-            } else if (tokenizer.tokenType() == TokenType.IDENTIFIER) {
-                type = tokenizer.identifier();
+            int type;
+            if (tokenizer.tokenType() == TokenType.KEYWORD || tokenizer.tokenType() == TokenType.IDENTIFIER) {
+                type = compileType();
             } else {
                 throw new IllegalStateException("Expected type declaration, got: " + tokenizer.getCurrentToken());
             }
@@ -90,7 +276,7 @@ public class CompilationEngine {
                 throw new IllegalStateException("Expected parameter name, got: " + tokenizer.getCurrentToken());
             }
 
-            String paramName = tokenizer.identifier();
+            int paramName = tokenizer.identifierId();
             symbolTable.define(paramName, type, KindType.ARG);
             tokenizer.advance();
 
@@ -110,12 +296,11 @@ public class CompilationEngine {
     private void compileVarDec() throws IOException {
         tokenizer.advance(); // Skip 'var' keyword
 
-        String type = (tokenizer.tokenType() == TokenType.KEYWORD) ? tokenizer.keyword().toString().toLowerCase()
-                : tokenizer.identifier();
+        int type = compileType();
         tokenizer.advance();
 
         do {
-            String name = tokenizer.identifier();
+            int name = tokenizer.identifierId();
             symbolTable.define(name, type, KindType.VAR);
             tokenizer.advance();
 
@@ -157,7 +342,7 @@ public class CompilationEngine {
 
     private void compileDo() throws IOException {
         tokenizer.advance(); // Skip 'do' keyword
-        String firstPart = tokenizer.identifier();
+        int firstPart = tokenizer.identifierId();
         tokenizer.advance();
         compileSubroutineCall(firstPart);
         vmWriter.writePop(Segment.TEMP, 0); // Discard return value
@@ -167,7 +352,7 @@ public class CompilationEngine {
 
     private void compileLet() throws IOException {
         tokenizer.advance(); // Skip 'let' keyword
-        String varName = tokenizer.identifier();
+        int varName = tokenizer.identifierId();
         tokenizer.advance();
 
         boolean isArray = false;
@@ -200,6 +385,19 @@ public class CompilationEngine {
 
 
     private void compileWhile() throws IOException {
+        int start = codeBuilder != null ? codeBuilder.current().size() : 0;
+        if (branches) {
+            compileBottomTestedWhile();
+        } else {
+            compilePlainWhile();
+        }
+        if (hoister != null) {
+            hoister.hoist(codeBuilder.current(), start);
+        }
+    }
+
+
+    private void compilePlainWhile() throws IOException {
         String startLabel = generateLabel();
         String endLabel = generateLabel();
 
@@ -220,6 +418,46 @@ public class CompilationEngine {
     }
 
 
+    /**
+     * Compiles a while loop with the condition after the body, so that each
+     * iteration takes a single conditional jump back to the body. Conditions
+     * not known to be true or false keep the plain layout, since if-goto
+     * takes any nonzero value as true while the loop only runs on -1.
+     */
+    private void compileBottomTestedWhile() throws IOException {
+        VMCode code = codeBuilder.current();
+        int start = code.size();
+
+        tokenizer.advance(); // Skip 'while'
+        tokenizer.advance(); // Skip '('
+        compileExpression(); // Compile condition
+        tokenizer.advance(); // Skip ')'
+        VMCode condition = code.cut(start);
+        boolean bottomTested = condition.isBoolean(condition.size());
+
+        if (bottomTested) {
+            String bodyLabel = generateLabel();
+            String testLabel = generateLabel();
+            vmWriter.writeGoto(testLabel);
+            vmWriter.writeLabel(bodyLabel);
+            compileBlock();
+            vmWriter.writeLabel(testLabel);
+            code.append(condition, 0);
+            countBranches(3 + writeBranch(bodyLabel, true)); // goto and two labels
+        } else {
+            String startLabel = generateLabel();
+            String endLabel = generateLabel();
+            vmWriter.writeLabel(startLabel);
+            code.append(condition, 0);
+            int branch = writeBranch(endLabel, false);
+            compileBlock();
+            vmWriter.writeGoto(startLabel);
+            vmWriter.writeLabel(endLabel);
+            countBranches(3 + branch); // Two labels and goto
+        }
+    }
+
+
     private void compileReturn() throws IOException {
         tokenizer.advance(); // Skip 'return'
 
@@ -235,6 +473,10 @@ public class CompilationEngine {
 
 
     private void compileIf() throws IOException {
+        if (branches) {
+            compileBranchingIf();
+            return;
+        }
         String endLabel = generateLabel();
         String elseLabel = generateLabel();
 
@@ -265,6 +507,87 @@ public class CompilationEngine {
     }
 
 
+    /**
+     * Compiles an if statement with a single jump over the if-true block,
+     * and without the else label and jump when there is no else block.
+     */
+    private void compileBranchingIf() throws IOException {
+        tokenizer.advance(); // Skip 'if'
+        tokenizer.advance(); // Skip '('
+        compileExpression(); // Compile condition
+        tokenizer.advance(); // Skip ')'
+
+        String elseLabel = generateLabel();
+        int branch = writeBranch(elseLabel, false);
+        compileBlock(); // Compile if-true block
+
+        if (tokenizer.tokenType() == TokenType.KEYWORD && tokenizer.keyword() == KeywordType.ELSE) {
+            String endLabel = generateLabel();
+            vmWriter.writeGoto(endLabel);
+            vmWriter.writeLabel(elseLabel);
+            tokenizer.advance(); // Skip 'else'
+            compileBlock(); // Compile else block
+            vmWriter.writeLabel(endLabel);
+            countBranches(3 + branch); // goto and two labels
+        } else {
+            vmWriter.writeLabel(elseLabel);
+            countBranches(1 + branch); // One label
+        }
+    }
+
+
+    /**
+     * Compiles a block of statements in braces.
+     */
+    private void compileBlock() throws IOException {
+        tokenizer.advance(); // Skip '{'
+        compileStatements();
+        tokenizer.advance(); // Skip '}'
+    }
+
+
+    /**
+     * Writes a jump to a label, taken when the condition on top of the stack
+     * is true, or when it is false. As with not; if-goto, a condition is only
+     * true when it is -1. So its own not, and a comparison with 0, are only
+     * folded into the jump for conditions known to be true or false, and a
+     * jump when true is only asked for such conditions.
+     *
+     * @return the number of instructions written: the if-goto and any not
+     */
+    private int writeBranch(String label, boolean whenTrue) throws IOException {
+        VMCode code = codeBuilder.current();
+        boolean known = code.isBoolean(code.size());
+        if (known) {
+            while (code.isArithmetic(code.size() - 1, Command.NOT)) {
+                code.truncate(code.size() - 1);
+                whenTrue = !whenTrue;
+            }
+        }
+        int written = 1;
+        if (!whenTrue) {
+            if (code.isArithmetic(code.size() - 1, Command.EQ) && code.isConstant(code.size() - 2, 0)) {
+                code.truncate(code.size() - 2); // x = 0 is false when x is not 0
+            } else {
+                vmWriter.writeArithmetic(Command.NOT);
+                written++;
+            }
+        }
+        vmWriter.writeIf(label);
+        return written;
+    }
+
+
+    /**
+     * Counts the not, jump and label instructions written for one if or
+     * while, against the five of the plain layout.
+     */
+    private void countBranches(int instructions) {
+        branchInstructions += instructions;
+        plainBranchInstructions += 5; // not, if-goto, goto and two labels
+    }
+
+
     private void compileExpression() throws IOException {
         compileTerm(); // Compile first term
 
@@ -316,13 +639,20 @@ public class CompilationEngine {
             vmWriter.writePush(Segment.CONST, tokenizer.intVal());
             tokenizer.advance();
         } else if (type == TokenType.STRING_CONST) {
-            // Handle string constants - create new String object and append chars
+            // Handle string constants - create new String object and append chars, or take it from the pool
             String str = tokenizer.stringVal();
-            vmWriter.writePush(Segment.CONST, str.length());
-            vmWriter.writeCall("String.new", 1);
-            for (char c : str.toCharArray()) {
-                vmWriter.writePush(Segment.CONST, (int) c);
-                vmWriter.writeCall("String.appendChar", 2);
+            if (stringPool != null) {
+                Integer number = stringPool.get(str);
+                if (number == null) {
+                    number = stringPool.size();
+                    stringPool.put(str, number);
+                }
+                vmWriter.writeCall(pooledStringFunction(number), 0);
+                pooledUses++;
+                pooledInstructions++;
+                unpooledInstructions += 2 * str.length() + 2;
+            } else {
+                writeString(str);
             }
             tokenizer.advance();
         } else if (type == TokenType.KEYWORD) {
@@ -350,13 +680,13 @@ public class CompilationEngine {
                 vmWriter.writeArithmetic(symbol == '-' ? Command.NEG : Command.NOT);
             }
         } else if (type == TokenType.IDENTIFIER) {
-            String name = tokenizer.identifier();
+            int name = tokenizer.identifierId();
             tokenizer.advance();
 
             if (tokenizer.tokenType() == TokenType.SYMBOL) {
                 if (tokenizer.symbol() == '[') {
                     // Handle array access
-                    String arrayName = name;
+                    int arrayName = name;
                     tokenizer.advance(); // Skip '['
                     compileExpression(); // Compile array index
                     tokenizer.advance(); // Skip ']'
@@ -380,19 +710,32 @@ public class CompilationEngine {
     }
 
 
+    /**
+     * Writes the code building a new string with the characters of a literal.
+     */
+    private void writeString(String str) throws IOException {
+        vmWriter.writePush(Segment.CONST, str.length());
+        vmWriter.writeCall("String.new", 1);
+        for (char c : str.toCharArray()) {
+            vmWriter.writePush(Segment.CONST, (int) c);
+            vmWriter.writeCall("String.appendChar", 2);
+        }
+    }
+
+
     private void compileSubroutine() throws IOException {
         symbolTable.reset(); // Reset symbol table for new subroutine
         KeywordType subroutineType = tokenizer.keyword();
 
         tokenizer.advance(); // Skip return type
         tokenizer.advance(); // Skip subroutine name
-        String subroutineName = tokenizer.identifier();
-        currentFunction = className + "." + subroutineName;
+        int subroutineName = tokenizer.identifierId();
+        currentFunction = identifiers.qualified(classNameId, subroutineName);
         tokenizer.advance(); // Skip '('
         tokenizer.advance();
 
         if (subroutineType == KeywordType.METHOD) {
-            symbolTable.define("this", className, KindType.ARG);
+            symbolTable.define(thisId, classNameId, KindType.ARG);
         }
 
         compileParameterList();
@@ -405,6 +748,9 @@ public class CompilationEngine {
         }
 
         vmWriter.writeFunction(currentFunction, symbolTable.varCount(KindType.VAR));
+        if (codeBuilder != null) {
+            codeBuilder.current().setArgumentCount(symbolTable.varCount(KindType.ARG));
+        }
 
         if (subroutineType == KeywordType.CONSTRUCTOR) {
             vmWriter.writePush(Segment.CONST, symbolTable.varCount(KindType.FIELD));
@@ -420,33 +766,33 @@ public class CompilationEngine {
     }
 
 
-    private void compileSubroutineCall(String firstPart) throws IOException {
+    private void compileSubroutineCall(int firstPart) throws IOException {
         String functionName;
         int nArgs = 0;
 
         if (tokenizer.symbol() == '(') {
             // Unqualified method call on current object
-            functionName = className + "." + firstPart;
+            functionName = identifiers.qualified(classNameId, firstPart);
             vmWriter.writePush(Segment.POINTER, 0); // Push 'this'
             nArgs = 1;
             tokenizer.advance(); // Skip '('
         } else if (tokenizer.symbol() == '.') {
             // Qualified call
             tokenizer.advance(); // Skip '.'
-            String subroutineName = tokenizer.identifier();
+            int subroutineName = tokenizer.identifierId();
             tokenizer.advance();
 
             // Determine if it's a method call on an object or a static function call
             KindType kind = symbolTable.kindOf(firstPart);
             if (kind != KindType.NONE) {
                 // Method call on an object
-                String type = symbolTable.typeOf(firstPart);
+                int type = symbolTable.typeIdOf(firstPart);
                 vmWriter.writePush(kindToSegment(kind), symbolTable.indexOf(firstPart));
-                functionName = type + "." + subroutineName;
+                functionName = identifiers.qualified(type, subroutineName);
                 nArgs = 1;
             } else {
                 // Static function call
-                functionName = firstPart + "." + subroutineName;
+                functionName = identifiers.qualified(firstPart, subroutineName);
             }
             tokenizer.advance(); // Skip '('
         } else {
@@ -455,7 +801,9 @@ public class CompilationEngine {
 
         nArgs += compileExpressionList(); // Compile arguments
         tokenizer.advance(); // Skip ')'
-        vmWriter.writeCall(functionName, nArgs); // Generate call instruction
+        if (intrinsics == null || !intrinsics.expand(functionName, nArgs, vmWriter)) {
+            vmWriter.writeCall(functionName, nArgs); // Generate call instruction
+        }
     }
 
 
@@ -477,7 +825,19 @@ public class CompilationEngine {
 
 
     private String generateLabel() {
-        return className + "_" + (labelCounter++);
+        return labelPrefix + (labelCounter++);
+    }
+
+
+    /**
+     * Returns the ID of the type at the current token: a keyword such as int,
+     * or a class name.
+     */
+    private int compileType() {
+        if (tokenizer.tokenType() == TokenType.KEYWORD) {
+            return identifiers.intern(KEYWORD_NAMES[tokenizer.keyword().ordinal()]);
+        }
+        return tokenizer.identifierId();
     }
 
 
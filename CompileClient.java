@@ -0,0 +1,56 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.net.SocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.List;
+
+/**
+ * The thin client of CompileServer. Sends the working directory and command
+ * line arguments of this process to a running server, prints the output of
+ * the build as it arrives, and returns the build's exit code.
+ */
+class CompileClient {
+
+    /**
+     * Runs a build on a compile server.
+     *
+     * @param address the port number or Unix domain socket path of the server
+     * @param args    the command line arguments describing the build
+     * @param out     the stream receiving the build's progress output
+     * @param err     the stream receiving the build's error output
+     * @return the exit code of the build
+     * @throws IOException if the server cannot be reached or hangs up early
+     */
+    public static int run(String address, List<String> args, PrintStream out, PrintStream err) throws IOException {
+        SocketAddress socketAddress = CompileServer.socketAddress(address);
+        try (SocketChannel channel = SocketChannel.open(socketAddress)) {
+            Writer writer = Channels.newWriter(channel, StandardCharsets.UTF_8);
+            writer.write(CompileServer.PROTOCOL + "\n");
+            writer.write("cwd " + Paths.get("").toAbsolutePath() + "\n");
+            for (String arg : args) {
+                writer.write("arg " + arg + "\n");
+            }
+            writer.write("end\n");
+            writer.flush();
+
+            BufferedReader in = new BufferedReader(
+                    new InputStreamReader(Channels.newInputStream(channel), StandardCharsets.UTF_8));
+            for (String line = in.readLine(); line != null; line = in.readLine()) {
+                if (line.startsWith("out ")) {
+                    out.println(line.substring("out ".length()));
+                } else if (line.startsWith("err ")) {
+                    err.println(line.substring("err ".length()));
+                } else if (line.startsWith("exit ")) {
+                    return Integer.parseInt(line.substring("exit ".length()));
+                }
+            }
+        }
+        throw new IOException("Compile server closed the connection before the build finished");
+    }
+}
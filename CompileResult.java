@@ -0,0 +1,44 @@
+import java.io.File;
+
+/**
+ * The outcome of compiling a single .jack file.
+ * Keeps the console output of the compilation so that results produced by
+ * worker threads can be printed in a deterministic order.
+ */
+class CompileResult {
+
+    private final File source;
+    private final String log;
+    private final Throwable error;
+    private final long elapsedNanos;
+
+    public CompileResult(File source, String log, Throwable error, long elapsedNanos) {
+        this.source = source;
+        this.log = log;
+        this.error = error;
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    public File getSource() {
+        return source;
+    }
+
+    public String getLog() {
+        return log;
+    }
+
+    /**
+     * Returns the error that aborted the compilation, or null on success.
+     */
+    public Throwable getError() {
+        return error;
+    }
+
+    public boolean succeeded() {
+        return error == null;
+    }
+
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+}
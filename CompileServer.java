@@ -0,0 +1,227 @@
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A resident compile server. Staying in one JVM saves the startup of a new
+ * process for every build, and keeps the compiler's hot paths JIT compiled
+ * from one build to the next.
+ *
+ * The server listens on a loopback TCP port, or on a Unix domain socket when
+ * the address is not a number. Each connection carries one build and is
+ * served on its own thread. The protocol is line based UTF-8 text:
+ * the client sends "JACK 1", "cwd &lt;folder&gt;", one "arg &lt;argument&gt;" line
+ * per command line argument, and "end". The server answers with
+ * "out &lt;line&gt;" and "err &lt;line&gt;" lines as the build progresses, and
+ * finishes with "exit &lt;code&gt;".
+ */
+class CompileServer {
+
+    static final String PROTOCOL = "JACK 1";
+
+    // Exit code sent back for a request the server could not understand.
+    static final int EXIT_USAGE = 2;
+
+    private final PrintStream log;
+
+    private CompileServer(PrintStream log) {
+        this.log = log;
+    }
+
+    /**
+     * Serves builds until the process is stopped.
+     *
+     * @param address a port number, or the path of a Unix domain socket
+     * @param out     the stream for server progress output
+     * @param err     the stream for server error output
+     * @throws IOException if the server socket cannot be opened
+     */
+    public static void run(String address, PrintStream out, PrintStream err) throws IOException {
+        ServerSocketChannel server = open(address);
+        ExecutorService executor = Executors.newCachedThreadPool();
+        CompileServer compileServer = new CompileServer(err);
+        out.println("Compile server listening on " + server.getLocalAddress());
+        try {
+            while (true) {
+                SocketChannel connection = server.accept();
+                executor.execute(() -> compileServer.serve(connection));
+            }
+        } finally {
+            executor.shutdown();
+            server.close();
+        }
+    }
+
+    /**
+     * Returns whether an address names a TCP port rather than a socket file.
+     */
+    static boolean isPort(String address) {
+        return !address.isEmpty() && address.chars().allMatch(Character::isDigit);
+    }
+
+    private static ServerSocketChannel open(String address) throws IOException {
+        if (isPort(address)) {
+            ServerSocketChannel server = ServerSocketChannel.open();
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(address)));
+            return server;
+        }
+
+        // A socket file left behind by a server that did not shut down
+        // cleanly would make the bind fail.
+        Path socket = Paths.get(address).toAbsolutePath();
+        Files.deleteIfExists(socket);
+        ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        server.bind(UnixDomainSocketAddress.of(socket));
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                Files.deleteIfExists(socket);
+            } catch (IOException e) {
+                // Nothing left to report to at shutdown.
+            }
+        }));
+        return server;
+    }
+
+    /**
+     * Returns the socket address a client should connect to.
+     */
+    static SocketAddress socketAddress(String address) {
+        if (isPort(address)) {
+            return new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(address));
+        }
+        return UnixDomainSocketAddress.of(Paths.get(address).toAbsolutePath());
+    }
+
+    /**
+     * Reads one build request from a connection, runs it, and streams its
+     * output and exit code back.
+     */
+    private void serve(SocketChannel connection) {
+        try (SocketChannel channel = connection) {
+            BufferedReader in = new BufferedReader(
+                    new InputStreamReader(Channels.newInputStream(channel), StandardCharsets.UTF_8));
+            Writer writer = Channels.newWriter(channel, StandardCharsets.UTF_8);
+            PrintStream out = new PrintStream(new LineForwarder("out", writer), false, StandardCharsets.UTF_8);
+            PrintStream err = new PrintStream(new LineForwarder("err", writer), false, StandardCharsets.UTF_8);
+
+            int exitCode = build(in, out, err);
+            out.flush();
+            err.flush();
+            synchronized (writer) {
+                writer.write("exit " + exitCode + "\n");
+                writer.flush();
+            }
+        } catch (IOException e) {
+            log.println("Compile server connection failed: " + e.getMessage());
+        }
+    }
+
+    private int build(BufferedReader in, PrintStream out, PrintStream err) throws IOException {
+        if (!PROTOCOL.equals(in.readLine())) {
+            err.println("Unsupported compile server protocol, expected " + PROTOCOL);
+            return EXIT_USAGE;
+        }
+        String workingDirectory = null;
+        List<String> args = new ArrayList<>();
+        for (String line = in.readLine(); !"end".equals(line); line = in.readLine()) {
+            if (line == null) {
+                throw new IOException("Connection closed in the middle of a request");
+            } else if (line.startsWith("cwd ")) {
+                workingDirectory = line.substring("cwd ".length());
+            } else if (line.startsWith("arg ")) {
+                args.add(line.substring("arg ".length()));
+            } else {
+                err.println("Malformed request line: " + line);
+                return EXIT_USAGE;
+            }
+        }
+
+        CompilerOptions options;
+        try {
+            options = CompilerOptions.parse(args.toArray(new String[0]));
+        } catch (IllegalArgumentException e) {
+            err.println(e.getMessage());
+            err.println(CompilerOptions.USAGE);
+            return EXIT_USAGE;
+        }
+        if (options.getServerAddress() != null || options.isWatch() || options.isStdin()) {
+            err.println("--server, --watch and --stdin cannot be sent to a compile server");
+            return EXIT_USAGE;
+        }
+        if (workingDirectory != null) {
+            options.resolveAgainst(Paths.get(workingDirectory));
+        }
+        return Main.run(options, out, err);
+    }
+
+    /**
+     * Sends everything written to it as tagged protocol lines. Output and
+     * error streams of one build share the connection, so whole lines are
+     * written under the writer's lock.
+     */
+    private static class LineForwarder extends OutputStream {
+
+        private final String tag;
+        private final Writer writer;
+        private final StringBuilder line = new StringBuilder();
+        private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+
+        LineForwarder(String tag, Writer writer) {
+            this.tag = tag;
+            this.writer = writer;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (b == '\n') {
+                sendLine();
+            } else {
+                pending.write(b);
+            }
+        }
+
+        /**
+         * Sends a trailing partial line. Only called once the build is done,
+         * so that text printed in pieces still arrives as one line.
+         */
+        @Override
+        public void flush() throws IOException {
+            if (pending.size() > 0) {
+                sendLine();
+            }
+        }
+
+        private void sendLine() throws IOException {
+            line.setLength(0);
+            line.append(tag).append(' ').append(pending.toString(StandardCharsets.UTF_8));
+            pending.reset();
+            if (line.length() > 0 && line.charAt(line.length() - 1) == '\r') {
+                line.setLength(line.length() - 1);
+            }
+            synchronized (writer) {
+                writer.write(line.append('\n').toString());
+                writer.flush();
+            }
+        }
+    }
+}
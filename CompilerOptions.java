@@ -0,0 +1,460 @@
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Command line options for the compiler.
+ * Holds the input roots together with the switches that control how they are
+ * compiled.
+ */
+class CompilerOptions {
+
+    // Version of the generated code; part of every build cache key.
+    // Change it whenever the compiler output changes for the same input.
+    static final String COMPILER_VERSION = "10";
+
+    static final String USAGE = "Usage: JackAnalyzer [-j <workers>] [-r] [--mmap] [--swar] [--flush=close|buffered|instruction]\n"
+            + "       [--format=vm|binary] [--decode] [--cache[=<dir>]] [--cache-limit=<bytes>[K|M|G]]\n"
+            + "       [-O] [--disable=<optimization>,...] [--pool-strings] [--ir] [--whole-program] [--link=<file>]\n"
+            + "       [--inline-size=<instructions>] [--inline-budget=<percent>]\n"
+            + "       [--watch] [--connect=<port|socket>]\n"
+            + "       <input file or folder>...\n"
+            + "       JackAnalyzer --server=<port|socket>\n"
+            + "       JackAnalyzer [--stdin[=framed]] [--mmap] [--swar] [--format=vm|binary] < <source>";
+
+    // Optimizations --disable accepts besides the peephole rules and the
+    // intrinsics, which go by their own names.
+    private static final List<String> PASSES = Arrays.asList("constant-folding", "strength-reduction",
+            "common-subexpressions", "tail-calls", "branches", "loop-invariants", "intrinsics", "inlining");
+
+    private final List<String> inputs = new ArrayList<>();
+    private int jobs = 1;
+    private boolean recursive = false;
+    private boolean memoryMapped = false;
+    private boolean swar = false;
+    private FlushPolicy flushPolicy = FlushPolicy.ON_CLOSE;
+    private OutputFormat outputFormat = OutputFormat.TEXT;
+    private boolean decode = false;
+    private String cacheDirectory = null;
+    private long cacheLimit = 0;
+    private boolean watch = false;
+    private boolean intermediateCode = false;
+    private boolean optimize = false;
+    private boolean poolStrings = false;
+    private boolean wholeProgram = false;
+    private String linkFile = null;
+    private int inlineSize = 8;
+    private int inlineBudget = 10;
+    private final List<String> disabled = new ArrayList<>();
+    private boolean stdin = false;
+    private boolean framed = false;
+    private String serverAddress = null;
+    private String connectAddress = null;
+    private final List<String> forwardedArgs = new ArrayList<>();
+
+    /**
+     * Parses the command line arguments.
+     *
+     * @param args the arguments passed to main
+     * @return the parsed options
+     * @throws IllegalArgumentException if an option is unknown or malformed
+     */
+    public static CompilerOptions parse(String[] args) {
+        CompilerOptions options = new CompilerOptions();
+
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.startsWith("--connect=")) {
+                options.connectAddress = arg.substring("--connect=".length());
+                continue;
+            }
+            options.forwardedArgs.add(arg);
+
+            if (arg.equals("-j") || arg.equals("--jobs")) {
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing worker count after " + arg);
+                }
+                options.jobs = parseJobs(args[++i]);
+                options.forwardedArgs.add(args[i]);
+            } else if (arg.startsWith("--jobs=")) {
+                options.jobs = parseJobs(arg.substring("--jobs=".length()));
+            } else if (arg.startsWith("-j") && arg.length() > 2) {
+                options.jobs = parseJobs(arg.substring(2));
+            } else if (arg.equals("-r") || arg.equals("--recursive")) {
+                options.recursive = true;
+            } else if (arg.equals("--mmap")) {
+                options.memoryMapped = true;
+            } else if (arg.equals("--swar")) {
+                options.memoryMapped = true; // Word-at-a-time scanning needs the whole file.
+                options.swar = true;
+            } else if (arg.startsWith("--flush=")) {
+                options.flushPolicy = parseFlushPolicy(arg.substring("--flush=".length()));
+            } else if (arg.equals("--format=vm")) {
+                options.outputFormat = OutputFormat.TEXT;
+            } else if (arg.equals("--format=binary")) {
+                options.outputFormat = OutputFormat.BINARY;
+            } else if (arg.equals("--decode")) {
+                options.decode = true;
+            } else if (arg.equals("--cache")) {
+                options.cacheDirectory = ".jackcache";
+            } else if (arg.startsWith("--cache=")) {
+                options.cacheDirectory = arg.substring("--cache=".length());
+            } else if (arg.startsWith("--cache-limit=")) {
+                options.cacheLimit = parseSize(arg.substring("--cache-limit=".length()));
+            } else if (arg.equals("--watch")) {
+                options.watch = true;
+            } else if (arg.equals("-O")) {
+                options.optimize = true;
+            } else if (arg.startsWith("--disable=")) {
+                options.disabled.addAll(parseDisabled(arg.substring("--disable=".length())));
+            } else if (arg.equals("--pool-strings")) {
+                options.poolStrings = true;
+            } else if (arg.equals("--whole-program")) {
+                options.wholeProgram = true;
+            } else if (arg.startsWith("--link=")) {
+                options.wholeProgram = true;
+                options.linkFile = arg.substring("--link=".length());
+            } else if (arg.startsWith("--inline-size=")) {
+                options.inlineSize = parseCount(arg.substring("--inline-size=".length()), "inline size");
+            } else if (arg.startsWith("--inline-budget=")) {
+                options.inlineBudget = parseCount(arg.substring("--inline-budget=".length()), "inline budget");
+            } else if (arg.equals("--ir")) {
+                options.intermediateCode = true;
+            } else if (arg.equals("--stdin")) {
+                options.stdin = true;
+            } else if (arg.equals("--stdin=framed")) {
+                options.stdin = true;
+                options.framed = true;
+            } else if (arg.startsWith("--server=")) {
+                options.serverAddress = arg.substring("--server=".length());
+            } else if (arg.startsWith("-") && arg.length() > 1) {
+                throw new IllegalArgumentException("Unknown option: " + arg);
+            } else {
+                options.inputs.add(arg);
+            }
+        }
+
+        if (options.inputs.isEmpty() && options.serverAddress == null && !options.stdin) {
+            throw new IllegalArgumentException("No input file or folder given");
+        }
+        return options;
+    }
+
+    /**
+     * Parses a worker count. Zero means one worker per available processor.
+     */
+    private static int parseJobs(String value) {
+        int jobs;
+        try {
+            jobs = Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid worker count: " + value);
+        }
+        if (jobs < 0) {
+            throw new IllegalArgumentException("Invalid worker count: " + value);
+        }
+        return jobs == 0 ? Runtime.getRuntime().availableProcessors() : jobs;
+    }
+
+    private static int parseCount(String value, String name) {
+        try {
+            int count = Integer.parseInt(value);
+            if (count < 0) {
+                throw new NumberFormatException();
+            }
+            return count;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + name + ": " + value);
+        }
+    }
+
+    private static List<String> parseDisabled(String value) {
+        List<String> names = Arrays.asList(value.split(","));
+        for (String name : names) {
+            if (!isOptimization(name)) {
+                throw new IllegalArgumentException("Unknown optimization: " + name);
+            }
+        }
+        return names;
+    }
+
+    private static boolean isOptimization(String name) {
+        if (PASSES.contains(name) || Intrinsics.names().contains(name)) {
+            return true;
+        }
+        for (PeepholeRule rule : PeepholeRules.defaults()) {
+            if (rule.name().equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static FlushPolicy parseFlushPolicy(String value) {
+        switch (value) {
+            case "close":
+                return FlushPolicy.ON_CLOSE;
+            case "buffered":
+                return FlushPolicy.BUFFERED;
+            case "instruction":
+                return FlushPolicy.INSTRUCTION;
+            default:
+                throw new IllegalArgumentException("Invalid flush policy: " + value);
+        }
+    }
+
+    /**
+     * Parses a size in bytes, with an optional K, M or G suffix.
+     */
+    private static long parseSize(String value) {
+        long unit = 1;
+        String digits = value;
+        if (!value.isEmpty()) {
+            switch (Character.toUpperCase(value.charAt(value.length() - 1))) {
+                case 'K':
+                    unit = 1L << 10;
+                    break;
+                case 'M':
+                    unit = 1L << 20;
+                    break;
+                case 'G':
+                    unit = 1L << 30;
+                    break;
+                default:
+                    break;
+            }
+            if (unit != 1) {
+                digits = value.substring(0, value.length() - 1);
+            }
+        }
+        try {
+            long size = Long.parseLong(digits);
+            if (size < 0) {
+                throw new NumberFormatException();
+            }
+            return size * unit;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid size: " + value);
+        }
+    }
+
+    public List<String> getInputs() {
+        return inputs;
+    }
+
+    public int getJobs() {
+        return jobs;
+    }
+
+    public boolean isRecursive() {
+        return recursive;
+    }
+
+    /**
+     * Returns whether sources are loaded whole (bulk read or memory mapped)
+     * instead of being read through a character stream.
+     */
+    public boolean isMemoryMapped() {
+        return memoryMapped;
+    }
+
+    /**
+     * Returns whether whitespace and comments are skipped eight bytes at a
+     * time. Implies whole-file input.
+     */
+    public boolean isSwar() {
+        return swar;
+    }
+
+    /**
+     * Returns when the VM writer hands its output to the file.
+     */
+    public FlushPolicy getFlushPolicy() {
+        return flushPolicy;
+    }
+
+    public OutputFormat getOutputFormat() {
+        return outputFormat;
+    }
+
+    /**
+     * Returns whether the inputs are binary VM files to decode back to text,
+     * rather than Jack sources to compile.
+     */
+    public boolean isDecode() {
+        return decode;
+    }
+
+    /**
+     * Returns the file extension of the inputs to process.
+     */
+    public String getInputExtension() {
+        return decode ? ".vmb" : ".jack";
+    }
+
+    /**
+     * Returns the file extension of the compiler output.
+     */
+    public String getOutputExtension() {
+        return !decode && outputFormat == OutputFormat.BINARY ? ".vmb" : ".vm";
+    }
+
+    /**
+     * Returns the build cache directory, or null if caching is off.
+     */
+    public String getCacheDirectory() {
+        return cacheDirectory;
+    }
+
+    /**
+     * Returns the build cache size limit in bytes, or 0 for no limit.
+     */
+    public long getCacheLimit() {
+        return cacheLimit;
+    }
+
+    /**
+     * Returns whether the compiler keeps running and recompiles files as they
+     * change.
+     */
+    public boolean isWatch() {
+        return watch;
+    }
+
+    /**
+     * Returns whether the engine records each subroutine as VMCode and lowers
+     * it through the writer at the end, instead of writing commands directly.
+     * The output is the same; the recorded code is what optimizations work on.
+     */
+    public boolean usesIntermediateCode() {
+        return intermediateCode || optimize || poolStrings || wholeProgram;
+    }
+
+    /**
+     * Returns whether the generated code is optimized.
+     */
+    public boolean isOptimize() {
+        return optimize;
+    }
+
+    /**
+     * Returns whether each distinct string literal of a class is built once
+     * and kept in a static variable, instead of being built every time it is
+     * evaluated. Code that changes or disposes of a literal then changes it
+     * for every later use.
+     */
+    public boolean isPoolStrings() {
+        return poolStrings;
+    }
+
+    /**
+     * Returns whether all inputs are compiled as one program, so that
+     * subroutines no one calls can be left out of the output.
+     */
+    public boolean isWholeProgram() {
+        return wholeProgram;
+    }
+
+    /**
+     * Returns the single file a whole-program build writes all code to, or
+     * null to write the code of each class next to its source.
+     */
+    public String getLinkFile() {
+        return linkFile;
+    }
+
+    /**
+     * Returns the size, in VM instructions, up to which an optimized whole
+     * program inlines subroutines into their callers.
+     */
+    public int getInlineSize() {
+        return inlineSize;
+    }
+
+    /**
+     * Returns how much inlining may grow an optimized whole program, in
+     * percent of its size.
+     */
+    public int getInlineBudget() {
+        return inlineBudget;
+    }
+
+    /**
+     * Returns the names of the optimizations turned off, such as single
+     * peephole rules.
+     */
+    public List<String> getDisabled() {
+        return disabled;
+    }
+
+    /**
+     * Returns whether Jack source is read from standard input and VM code
+     * written to standard output, instead of compiling files.
+     */
+    public boolean isStdin() {
+        return stdin;
+    }
+
+    /**
+     * Returns whether standard input carries a stream of length-prefixed
+     * sources rather than a single one.
+     */
+    public boolean isFramed() {
+        return framed;
+    }
+
+    /**
+     * Returns the address a compile server should listen on: a port number
+     * on the loopback interface or a Unix domain socket path. Null unless
+     * running as a server.
+     */
+    public String getServerAddress() {
+        return serverAddress;
+    }
+
+    /**
+     * Returns the address of the compile server to send this build to, or
+     * null to compile in this process.
+     */
+    public String getConnectAddress() {
+        return connectAddress;
+    }
+
+    /**
+     * Returns the arguments to send to a compile server: all arguments
+     * except the one naming the server.
+     */
+    public List<String> getForwardedArgs() {
+        return forwardedArgs;
+    }
+
+    /**
+     * Makes the relative input and cache paths absolute, against the given
+     * working directory. Used by the compile server for its clients' paths.
+     */
+    void resolveAgainst(Path workingDirectory) {
+        inputs.replaceAll(input -> workingDirectory.resolve(input).toString());
+        if (cacheDirectory != null) {
+            cacheDirectory = workingDirectory.resolve(cacheDirectory).toString();
+        }
+        if (linkFile != null) {
+            linkFile = workingDirectory.resolve(linkFile).toString();
+        }
+    }
+
+    /**
+     * Returns a description of everything that determines the output for a
+     * given source: the compiler version and the output affecting options.
+     */
+    public String fingerprint() {
+        String fingerprint = "jack-compiler " + COMPILER_VERSION + " format=" + outputFormat;
+        if (optimize) {
+            fingerprint += " -O disabled=" + disabled;
+        }
+        if (poolStrings) {
+            fingerprint += " --pool-strings";
+        }
+        return fingerprint;
+    }
+}
@@ -0,0 +1,286 @@
+import java.util.Arrays;
+
+/**
+ * Folds operations on constants into a single constant, with the 16-bit
+ * wraparound of the Hack platform, and replaces calls to Math.multiply by
+ * small constants with additions. Calls to Math.divide stay unless both
+ * operands are known, since the OS returns 0 for a dividend of -32768.
+ *
+ * The folder follows the operands pushed right before each operation, so it
+ * only sees operands computed without a label, call or pop in between. That
+ * is how the engine compiles every expression, and it means a rewrite never
+ * crosses a jump target.
+ */
+class ConstantFolder {
+
+    // Largest factor a multiplication is reduced for when it is not a power
+    // of two; longer add chains are not worth their size.
+    private static final int MAX_SMALL_FACTOR = 16;
+
+    // Value of an operand that is a single push of a variable.
+    private static final int VARIABLE = Integer.MIN_VALUE;
+
+    private final boolean folding;
+    private final boolean reducing;
+    private int folded;
+    private int reduced;
+
+    // The operands at the end of the code being built: where each starts and
+    // its constant value, or VARIABLE.
+    private int[] starts = new int[16];
+    private int[] values = new int[16];
+    private int depth;
+
+    /**
+     * Creates a folder.
+     *
+     * @param folding  whether to fold operations on constants
+     * @param reducing whether to reduce multiplications and divisions by constants
+     */
+    public ConstantFolder(boolean folding, boolean reducing) {
+        this.folding = folding;
+        this.reducing = reducing;
+    }
+
+    /**
+     * Returns the number of operations folded into constants so far.
+     */
+    public int getFolded() {
+        return folded;
+    }
+
+    /**
+     * Returns the number of multiplications and divisions reduced so far.
+     */
+    public int getReduced() {
+        return reduced;
+    }
+
+    /**
+     * Optimizes the code of one subroutine.
+     *
+     * @param code the code to optimize; it is not modified
+     * @return the optimized code
+     */
+    public VMCode optimize(VMCode code) {
+        VMCode out = code.emptyCopy();
+        depth = 0;
+        for (int i = 0; i < code.size(); i++) {
+            byte opcode = code.opcode(i);
+            if (opcode == VMCode.PUSH && code.segment(i) != Segment.TEMP) {
+                // Temps are left out: a reduced multiplication overwrites them.
+                int start = out.size();
+                out.copy(code, i);
+                boolean constant = code.segment(i) == Segment.CONST;
+                pushOperand(start, constant ? (short) code.operand(i) : VARIABLE);
+            } else if (opcode == VMCode.ARITHMETIC && arithmetic(out, code.command(i))) {
+                continue;
+            } else if (opcode == VMCode.CALL && code.operand(i) == 2 && call(out, code.callee(i))) {
+                continue;
+            } else {
+                out.copy(code, i);
+                depth = 0;
+            }
+        }
+        return out;
+    }
+
+    private boolean arithmetic(VMCode out, Command command) {
+        if (command == Command.NEG || command == Command.NOT) {
+            if (!folding || !isConstant(1)) {
+                return false;
+            }
+            int value = values[depth - 1];
+            replace(out, 1, 1, command == Command.NEG ? -value : ~value);
+            return true;
+        }
+        if (!folding || !isConstant(1) || !isConstant(2)) {
+            return false;
+        }
+        int x = values[depth - 2];
+        int y = values[depth - 1];
+        int result;
+        switch (command) {
+            case ADD:
+                result = x + y;
+                break;
+            case SUB:
+                result = x - y;
+                break;
+            case AND:
+                result = x & y;
+                break;
+            case OR:
+                result = x | y;
+                break;
+            case EQ:
+                result = x == y ? -1 : 0;
+                break;
+            case GT:
+                result = x > y ? -1 : 0;
+                break;
+            case LT:
+                result = x < y ? -1 : 0;
+                break;
+            default:
+                return false;
+        }
+        replace(out, 2, 1, result);
+        return true;
+    }
+
+    private boolean call(VMCode out, String callee) {
+        if (callee.equals("Math.multiply")) {
+            if (folding && isConstant(1) && isConstant(2)) {
+                replace(out, 2, 1, values[depth - 2] * values[depth - 1]);
+                return true;
+            }
+            if (reducing && isConstant(1) && isReducible(values[depth - 1])) {
+                int factor = values[depth - 1];
+                out.truncate(starts[--depth]);
+                multiply(out, factor);
+                return true;
+            }
+            if (reducing && isVariable(1) && isConstant(2) && isReducible(values[depth - 2])) {
+                // c * v is v * c; the variable is pushed again in place of the constant.
+                int factor = values[depth - 2];
+                int variable = starts[depth - 1];
+                Segment segment = out.segment(variable);
+                int index = out.operand(variable);
+                out.truncate(starts[depth - 2]);
+                depth -= 2;
+                pushOperand(out.size(), VARIABLE);
+                out.addPush(segment, index);
+                multiply(out, factor);
+                return true;
+            }
+        } else if (callee.equals("Math.divide")) {
+            if (folding && isConstant(1) && isConstant(2)) {
+                int x = values[depth - 2];
+                int y = values[depth - 1];
+                // Division by zero is left to Sys.error at run time, and the
+                // OS does not divide -32768 by taking absolute values.
+                if (y != 0 && x != Short.MIN_VALUE && y != Short.MIN_VALUE) {
+                    replace(out, 2, 1, x / y);
+                    return true;
+                }
+            }
+            // The OS returns 0 for a dividend of -32768 even when dividing by
+            // 1 or -1, so only a known dividend is divided by dropping the call.
+            if (reducing && isConstant(1) && Math.abs(values[depth - 1]) == 1
+                    && isConstant(2) && values[depth - 2] != Short.MIN_VALUE) {
+                boolean negate = values[depth - 1] < 0;
+                out.truncate(starts[--depth]);
+                if (negate) {
+                    out.addArithmetic(Command.NEG);
+                }
+                depth = 0;
+                reduced++;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Multiplies the value on top of the stack by a factor without calling
+     * Math.multiply: by doubling for each bit of the factor and adding the
+     * value back for each set bit. The value is pushed again if it is a
+     * variable, and kept in temp 1 otherwise; temp 0 holds the running
+     * product while it is doubled.
+     */
+    private void multiply(VMCode out, int factor) {
+        int variable = isVariable(1) ? starts[depth - 1] : -1;
+        int magnitude = Math.abs(factor);
+        reduced++;
+        depth = 0;
+        if (magnitude == 0) {
+            if (variable >= 0) {
+                out.truncate(variable);
+                out.addPush(Segment.CONST, 0);
+            } else {
+                out.addPush(Segment.CONST, 0);
+                out.addArithmetic(Command.AND);
+            }
+            return;
+        }
+        boolean powerOfTwo = Integer.bitCount(magnitude) == 1;
+        Segment segment = Segment.TEMP;
+        int index = 1;
+        if (variable >= 0) {
+            segment = out.segment(variable);
+            index = out.operand(variable);
+        } else if (!powerOfTwo) {
+            out.addPop(Segment.TEMP, 1);
+            out.addPush(Segment.TEMP, 1);
+        }
+        boolean single = variable >= 0 || !powerOfTwo; // the product so far can be pushed again
+        for (int bit = Integer.highestOneBit(magnitude) >> 1; bit != 0; bit >>= 1) {
+            if (single) {
+                out.addPush(segment, index);
+            } else {
+                out.addPop(Segment.TEMP, 0);
+                out.addPush(Segment.TEMP, 0);
+                out.addPush(Segment.TEMP, 0);
+            }
+            out.addArithmetic(Command.ADD);
+            single = false;
+            if ((magnitude & bit) != 0) {
+                out.addPush(segment, index);
+                out.addArithmetic(Command.ADD);
+            }
+        }
+        if (factor < 0) {
+            out.addArithmetic(Command.NEG);
+        }
+    }
+
+    private static boolean isReducible(int factor) {
+        int magnitude = Math.abs(factor);
+        return magnitude <= MAX_SMALL_FACTOR
+                || (Integer.bitCount(magnitude) == 1 && magnitude < 1 << 15);
+    }
+
+    /**
+     * Replaces the top operands and the operation on them, which takes up
+     * the given number of instructions of the input, with a constant.
+     */
+    private void replace(VMCode out, int operands, int operation, int value) {
+        depth -= operands;
+        int start = starts[depth];
+        int replacedSize = out.size() - start + operation;
+        out.truncate(start);
+        short result = (short) value;
+        if (result >= 0) {
+            out.addPush(Segment.CONST, result);
+        } else if (result == Short.MIN_VALUE) {
+            out.addPush(Segment.CONST, Short.MAX_VALUE);
+            out.addArithmetic(Command.NOT);
+        } else {
+            out.addPush(Segment.CONST, -result);
+            out.addArithmetic(Command.NEG);
+        }
+        if (out.size() - start < replacedSize) {
+            folded++;
+        }
+        pushOperand(start, result);
+    }
+
+    private void pushOperand(int start, int value) {
+        if (depth == starts.length) {
+            starts = Arrays.copyOf(starts, depth * 2);
+            values = Arrays.copyOf(values, depth * 2);
+        }
+        starts[depth] = start;
+        values[depth] = value;
+        depth++;
+    }
+
+    private boolean isConstant(int fromTop) {
+        return depth >= fromTop && values[depth - fromTop] != VARIABLE;
+    }
+
+    private boolean isVariable(int fromTop) {
+        return depth >= fromTop && values[depth - fromTop] == VARIABLE;
+    }
+}
@@ -0,0 +1,6 @@
+// Enum to represent when VMWriter hands its buffered output to the file.
+public enum FlushPolicy {
+    ON_CLOSE, // Write the whole output once, when the writer is closed.
+    BUFFERED, // Write whenever the buffer fills up.
+    INSTRUCTION // Write after every instruction.
+}
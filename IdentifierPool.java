@@ -0,0 +1,192 @@
+import java.util.Arrays;
+
+/**
+ * Interns the identifiers of a compilation, giving each distinct name a dense
+ * int ID from 0 up. The tokenizer interns identifiers straight from the
+ * source bytes, so a name that was seen before costs no new String; the symbol
+ * table is indexed by ID, and qualified names such as "Main.run" are built
+ * once per pair of IDs and cached.
+ * Not thread-safe; every compilation has its own pool.
+ */
+class IdentifierPool {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private String[] names = new String[INITIAL_CAPACITY];
+    private int[] hashes = new int[INITIAL_CAPACITY];
+    private int size;
+
+    // Open addressing table of name IDs plus one, 0 for an empty slot.
+    private int[] slots = new int[INITIAL_CAPACITY * 2];
+
+    // Cache of qualified names, keyed by the two IDs packed into a long.
+    private long[] qualifiedKeys = new long[INITIAL_CAPACITY];
+    private String[] qualifiedNames = new String[INITIAL_CAPACITY];
+    private int qualifiedCount;
+
+    /**
+     * Returns the ID of a name, adding it to the pool if it is new.
+     */
+    public int intern(String name) {
+        int hash = name.hashCode();
+        int mask = slots.length - 1;
+        int slot = spread(hash) & mask;
+        for (int entry = slots[slot]; entry != 0; entry = slots[slot]) {
+            if (hashes[entry - 1] == hash && names[entry - 1].equals(name)) {
+                return entry - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return add(name, hash, slot);
+    }
+
+    /**
+     * Returns the ID of the name spelled by part of a source, adding it to the
+     * pool if it is new. Only creates a String for a new name.
+     *
+     * @param source the source holding the name
+     * @param start  the index of the first byte of the name
+     * @param count  the number of bytes in the name
+     * @return the ID of the name
+     */
+    public int intern(SourceBuffer source, int start, int count) {
+        // Hash the bytes the way String.hashCode() hashes the decoded name,
+        // which for ASCII has the same characters.
+        int hash = 0;
+        for (int i = 0; i < count; i++) {
+            char ch = source.charAt(start + i);
+            if (ch >= 0x80) {
+                return intern(source.text(start, count));
+            }
+            hash = 31 * hash + ch;
+        }
+
+        int mask = slots.length - 1;
+        int slot = spread(hash) & mask;
+        for (int entry = slots[slot]; entry != 0; entry = slots[slot]) {
+            if (hashes[entry - 1] == hash && matches(names[entry - 1], source, start, count)) {
+                return entry - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return add(source.text(start, count), hash, slot);
+    }
+
+    /**
+     * Returns the ID of a name, or -1 if it is not in the pool.
+     */
+    public int find(String name) {
+        int hash = name.hashCode();
+        int mask = slots.length - 1;
+        int slot = spread(hash) & mask;
+        for (int entry = slots[slot]; entry != 0; entry = slots[slot]) {
+            if (hashes[entry - 1] == hash && names[entry - 1].equals(name)) {
+                return entry - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the name with the given ID.
+     */
+    public String name(int id) {
+        return names[id];
+    }
+
+    /**
+     * Returns the number of names in the pool; all IDs are below it.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns owner + "." + member, creating the String only the first time
+     * the pair is asked for.
+     *
+     * @param owner  the ID of the class name
+     * @param member the ID of the subroutine name
+     * @return the qualified name
+     */
+    public String qualified(int owner, int member) {
+        long key = ((long) owner << 32) | member;
+        int mask = qualifiedKeys.length - 1;
+        int slot = spread(Long.hashCode(key)) & mask;
+        while (qualifiedNames[slot] != null) {
+            if (qualifiedKeys[slot] == key) {
+                return qualifiedNames[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        String name = names[owner] + "." + names[member];
+        qualifiedKeys[slot] = key;
+        qualifiedNames[slot] = name;
+        if (++qualifiedCount * 2 > qualifiedKeys.length) {
+            growQualified();
+        }
+        return name;
+    }
+
+    private int add(String name, int hash, int slot) {
+        if (size == names.length) {
+            names = Arrays.copyOf(names, size * 2);
+            hashes = Arrays.copyOf(hashes, size * 2);
+        }
+        names[size] = name;
+        hashes[size] = hash;
+        slots[slot] = ++size;
+        if (size * 2 > slots.length) {
+            growSlots();
+        }
+        return size - 1;
+    }
+
+    private void growSlots() {
+        slots = new int[slots.length * 2];
+        int mask = slots.length - 1;
+        for (int id = 0; id < size; id++) {
+            int slot = spread(hashes[id]) & mask;
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = id + 1;
+        }
+    }
+
+    private void growQualified() {
+        long[] oldKeys = qualifiedKeys;
+        String[] oldNames = qualifiedNames;
+        qualifiedKeys = new long[oldKeys.length * 2];
+        qualifiedNames = new String[oldNames.length * 2];
+        int mask = qualifiedKeys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldNames[i] != null) {
+                int slot = spread(Long.hashCode(oldKeys[i])) & mask;
+                while (qualifiedNames[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                qualifiedKeys[slot] = oldKeys[i];
+                qualifiedNames[slot] = oldNames[i];
+            }
+        }
+    }
+
+    private static boolean matches(String name, SourceBuffer source, int start, int count) {
+        if (name.length() != count) {
+            return false;
+        }
+        for (int i = 0; i < count; i++) {
+            if (name.charAt(i) != source.charAt(start + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -0,0 +1,211 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Compiles Jack source held in memory, for tools that embed the compiler.
+ * Sources can be given as text, a reader or raw bytes, and the output is
+ * returned as bytes or replayed command by command through a VMWriter.
+ * The output is the same as compiling a file with the same contents and
+ * options. Every compilation has its own tokenizer, symbol table and writer,
+ * so any number of them can run at once.
+ */
+class InMemoryCompiler {
+
+    private InMemoryCompiler() {
+    }
+
+    /**
+     * Compiles one class from source text.
+     *
+     * @param source  the Jack source of the class
+     * @param options the compiler options; output format, flush policy and
+     *                scanner switches apply, file related options are ignored
+     * @return the VM output, text or binary depending on the options
+     * @throws IOException if the source cannot be compiled
+     */
+    public static byte[] compile(CharSequence source, CompilerOptions options) throws IOException {
+        return compileTo(tokenizer(source, options), options);
+    }
+
+    /**
+     * Compiles one class read from a reader. The reader is not closed.
+     *
+     * @param source  the reader of the Jack source
+     * @param options the compiler options
+     * @return the VM output
+     * @throws IOException if the source cannot be read or compiled
+     */
+    public static byte[] compile(Reader source, CompilerOptions options) throws IOException {
+        return compileTo(tokenizer(source, options), options);
+    }
+
+    /**
+     * Compiles one class from source bytes in the platform charset, like a
+     * source file. The remaining bytes of the buffer are used, and the buffer
+     * itself is not modified.
+     *
+     * @param source  the Jack source bytes
+     * @param options the compiler options
+     * @return the VM output
+     * @throws IOException if the source cannot be compiled
+     */
+    public static byte[] compile(ByteBuffer source, CompilerOptions options) throws IOException {
+        return compileTo(tokenizer(source, options), options);
+    }
+
+    /**
+     * Compiles one class from source text and passes each command to a
+     * writer, which is closed at the end. A subclass of VMWriter overriding
+     * the write methods receives the commands without any encoding.
+     *
+     * @param source  the Jack source of the class
+     * @param options the compiler options
+     * @param writer  the writer receiving the commands
+     * @throws IOException if the source cannot be compiled or the writer fails
+     */
+    public static void compile(CharSequence source, CompilerOptions options, VMWriter writer) throws IOException {
+        compile(tokenizer(source, options), writer, options);
+    }
+
+    /**
+     * Compiles one class from source bytes and passes each command to a
+     * writer, which is closed at the end.
+     *
+     * @param source  the Jack source bytes
+     * @param options the compiler options
+     * @param writer  the writer receiving the commands
+     * @throws IOException if the source cannot be compiled or the writer fails
+     */
+    public static void compile(ByteBuffer source, CompilerOptions options, VMWriter writer) throws IOException {
+        compile(tokenizer(source, options), writer, options);
+    }
+
+    /**
+     * Compiles several classes, using as many worker threads as the options
+     * request.
+     *
+     * @param sources the Jack source of each class, by class name
+     * @param options the compiler options
+     * @return the VM output of each class, by class name, in the order of the sources
+     * @throws IOException if any class fails to compile; the first failure is
+     *                     the cause, and later ones are suppressed
+     */
+    public static Map<String, byte[]> compileAll(Map<String, ? extends CharSequence> sources,
+            CompilerOptions options) throws IOException {
+        Map<String, byte[]> outputs = new LinkedHashMap<>();
+        int workers = Math.min(options.getJobs(), sources.size());
+        IOException failure = null;
+
+        if (workers <= 1) {
+            for (Map.Entry<String, ? extends CharSequence> entry : sources.entrySet()) {
+                try {
+                    outputs.put(entry.getKey(), compile(entry.getValue(), options));
+                } catch (IOException | RuntimeException | StackOverflowError e) {
+                    failure = addFailure(failure, entry.getKey(), e);
+                }
+            }
+        } else {
+            ExecutorService executor = Executors.newFixedThreadPool(workers);
+            try {
+                List<String> classNames = new ArrayList<>(sources.keySet());
+                List<Future<byte[]>> futures = new ArrayList<>();
+                for (String className : classNames) {
+                    CharSequence source = sources.get(className);
+                    futures.add(executor.submit(() -> compile(source, options)));
+                }
+
+                for (int i = 0; i < classNames.size(); i++) {
+                    try {
+                        outputs.put(classNames.get(i), futures.get(i).get());
+                    } catch (ExecutionException e) {
+                        failure = addFailure(failure, classNames.get(i), e.getCause());
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        failure = addFailure(failure, classNames.get(i), e);
+                    }
+                }
+            } finally {
+                executor.shutdown();
+            }
+        }
+
+        if (failure != null) {
+            throw failure;
+        }
+        return outputs;
+    }
+
+    private static IOException addFailure(IOException failure, String className, Throwable cause) {
+        IOException exception = new IOException("Error compiling class " + className + ": " + cause, cause);
+        if (failure == null) {
+            return exception;
+        }
+        failure.addSuppressed(exception);
+        return failure;
+    }
+
+    private static byte[] compileTo(JackTokenizer tokenizer, CompilerOptions options) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        VMWriter writer = options.getOutputFormat() == OutputFormat.BINARY
+                ? new BinaryVMWriter(Channels.newChannel(output), options.getFlushPolicy())
+                : new VMWriter(Channels.newChannel(output), options.getFlushPolicy());
+        compile(tokenizer, writer, options);
+        return output.toByteArray();
+    }
+
+    private static void compile(JackTokenizer tokenizer, VMWriter writer, CompilerOptions options)
+            throws IOException {
+        CompilationEngine engine = new CompilationEngine(tokenizer, writer, options);
+        try {
+            engine.compileClass();
+        } finally {
+            engine.close();
+        }
+    }
+
+    /**
+     * Creates the tokenizer the file based compiler would use for the same
+     * options: the whole-source scanner when memory mapping is requested, and
+     * the character reader otherwise.
+     */
+    private static JackTokenizer tokenizer(CharSequence source, CompilerOptions options) throws IOException {
+        if (options.isMemoryMapped()) {
+            return new JackTokenizer(SourceBuffer.of(source), options.isSwar());
+        }
+        return new JackTokenizer(new StringReader(source.toString()));
+    }
+
+    private static JackTokenizer tokenizer(Reader source, CompilerOptions options) throws IOException {
+        if (!options.isMemoryMapped()) {
+            return new JackTokenizer(source);
+        }
+        StringBuilder text = new StringBuilder();
+        char[] chunk = new char[8192];
+        for (int count = source.read(chunk); count != -1; count = source.read(chunk)) {
+            text.append(chunk, 0, count);
+        }
+        return new JackTokenizer(SourceBuffer.of(text), options.isSwar());
+    }
+
+    private static JackTokenizer tokenizer(ByteBuffer source, CompilerOptions options) throws IOException {
+        if (options.isMemoryMapped()) {
+            return new JackTokenizer(SourceBuffer.wrap(source), options.isSwar());
+        }
+        CharBuffer text = Charset.defaultCharset().decode(source.slice());
+        return new JackTokenizer(new StringReader(text.toString()));
+    }
+}
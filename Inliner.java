@@ -0,0 +1,238 @@
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Replaces calls to small subroutines with the code of the subroutine, across
+ * the classes of a whole program.
+ *
+ * An inlined body keeps its arguments and locals in fresh local slots of the
+ * caller, past the caller's own locals. A method's this becomes that: the
+ * body sets pointer 1 instead of pointer 0, so the caller's this is left
+ * alone. That is safe because the engine never keeps pointer 1 across a call.
+ * Only the original bodies are inlined, so an inlined body never contains
+ * another one, and all inlined bodies of a caller can share the same slots.
+ */
+class Inliner {
+
+    private final int maxSize;
+    private final int budgetPercent;
+
+    private int calls;
+    private int inlinedCalls;
+    private final Set<String> inlinedSubroutines = new HashSet<>();
+    private int sizeBefore;
+    private int sizeAfter;
+
+    /**
+     * Creates an inliner.
+     *
+     * @param maxSize       the largest body, in VM instructions without the
+     *                      return, that is inlined
+     * @param budgetPercent how much the program may grow through inlining, in
+     *                      percent of its size
+     */
+    public Inliner(int maxSize, int budgetPercent) {
+        this.maxSize = maxSize;
+        this.budgetPercent = budgetPercent;
+    }
+
+    /**
+     * Inlines calls in every function of a program, replacing the code of
+     * the functions that change.
+     *
+     * @param functions the code of every function of the program, by name
+     */
+    public void inline(Map<String, VMCode> functions) {
+        Map<String, VMCode> candidates = new HashMap<>();
+        for (VMCode code : functions.values()) {
+            sizeBefore += code.size();
+            if (isInlinable(code)) {
+                candidates.put(code.getName(), code);
+            }
+        }
+
+        int budget = sizeBefore * budgetPercent / 100;
+        for (Map.Entry<String, VMCode> entry : functions.entrySet()) {
+            VMCode caller = entry.getValue();
+            VMCode out = caller.emptyCopy();
+            int slots = 0;
+            for (int i = 0; i < caller.size(); i++) {
+                if (caller.opcode(i) != VMCode.CALL) {
+                    out.copy(caller, i);
+                    continue;
+                }
+                calls++;
+                VMCode callee = candidates.get(caller.callee(i));
+                int nArgs = caller.operand(i);
+                int growth = callee == null ? 0 : inlinedSize(callee, nArgs) - 1;
+                if (callee == null || callee == caller || growth > budget
+                        || (usesStatics(callee) && !className(callee).equals(className(caller)))) {
+                    out.copy(caller, i);
+                    continue;
+                }
+                budget -= Math.max(growth, 0);
+                slots = Math.max(slots, nArgs + callee.getLocalCount());
+                expand(callee, nArgs, caller.getLocalCount(), inlinedCalls, out);
+                inlinedCalls++;
+                inlinedSubroutines.add(callee.getName());
+            }
+            if (out.size() != caller.size() || slots > 0) {
+                out.setLocalCount(caller.getLocalCount() + slots);
+                entry.setValue(out);
+            }
+            sizeAfter += entry.getValue().size();
+        }
+    }
+
+    /**
+     * Returns a summary of what was inlined, for the build log.
+     */
+    public String getReport() {
+        return String.format("Inlining replaced %d of %d calls with the code of %d subroutines, "
+                + "changing the program from %d to %d VM instructions",
+                inlinedCalls, calls, inlinedSubroutines.size(), sizeBefore, sizeAfter);
+    }
+
+    /**
+     * Returns whether a subroutine is small enough and simple enough to
+     * inline: it does not call itself, and does not use both this and that,
+     * since its this is moved to that.
+     */
+    private boolean isInlinable(VMCode code) {
+        if (code.size() - 1 > maxSize || !code.is(code.size() - 1, VMCode.RETURN)) {
+            return false;
+        }
+        boolean usesThis = false;
+        boolean usesThat = false;
+        for (int i = 0; i < code.size(); i++) {
+            if (code.is(i, VMCode.CALL) && code.callee(i).equals(code.getName())) {
+                return false;
+            }
+            if (code.is(i, VMCode.PUSH) || code.is(i, VMCode.POP)) {
+                Segment segment = code.segment(i);
+                boolean pointer = segment == Segment.POINTER;
+                usesThis |= segment == Segment.THIS || (pointer && code.operand(i) == 0);
+                usesThat |= segment == Segment.THAT || (pointer && code.operand(i) == 1);
+            }
+        }
+        return !(usesThis && usesThat);
+    }
+
+    private static boolean usesStatics(VMCode code) {
+        for (int i = 0; i < code.size(); i++) {
+            if ((code.is(i, VMCode.PUSH) || code.is(i, VMCode.POP)) && code.segment(i) == Segment.STATIC) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String className(VMCode code) {
+        String name = code.getName();
+        return name.substring(0, name.indexOf('.') + 1);
+    }
+
+    /**
+     * Returns the number of instructions the expansion of a call takes.
+     */
+    private static int inlinedSize(VMCode callee, int nArgs) {
+        VMCode out = new VMCode(callee.getName(), 0);
+        expand(callee, nArgs, 0, 0, out);
+        return out.size();
+    }
+
+    /**
+     * Appends the code of a callee in place of a call to it. The arguments
+     * are popped into the slots from the given base, and the callee's
+     * locals, which the VM would set to 0, follow them.
+     *
+     * @param callee the subroutine to inline
+     * @param nArgs  the number of arguments the call passes
+     * @param base   the first caller local the callee's arguments go in
+     * @param site   a number unique to this call site within the caller
+     * @param out    the caller code being built
+     */
+    private static void expand(VMCode callee, int nArgs, int base, int site, VMCode out) {
+        int locals = base + nArgs;
+        int start = 0;
+        int lastArgument = nArgs - 1;
+        // The last argument is already on top of the stack: if the body
+        // starts by pushing it and never uses it again, it can stay there.
+        if (nArgs > 0 && isArgument(callee, 0, lastArgument) && argumentUses(callee, lastArgument) == 1) {
+            start = 1;
+            lastArgument--;
+        }
+        for (int i = lastArgument; i >= 0; i--) {
+            out.addPop(Segment.LOCAL, base + i);
+        }
+        for (int i = 0; i < callee.getLocalCount(); i++) {
+            out.addPush(Segment.CONST, 0);
+            out.addPop(Segment.LOCAL, locals + i);
+        }
+
+        String suffix = "$" + site;
+        String endLabel = callee.getName() + suffix;
+        int returns = 0;
+        int last = callee.size() - 1;
+        for (int i = start; i < last; i++) {
+            switch (callee.opcode(i)) {
+                case VMCode.PUSH:
+                case VMCode.POP:
+                    Segment segment = callee.segment(i);
+                    int index = callee.operand(i);
+                    if (segment == Segment.ARG) {
+                        segment = Segment.LOCAL;
+                        index += base;
+                    } else if (segment == Segment.LOCAL) {
+                        index += locals;
+                    } else if (segment == Segment.THIS) {
+                        segment = Segment.THAT;
+                    } else if (segment == Segment.POINTER && index == 0) {
+                        index = 1;
+                    }
+                    if (callee.opcode(i) == VMCode.PUSH) {
+                        out.addPush(segment, index);
+                    } else {
+                        out.addPop(segment, index);
+                    }
+                    break;
+                case VMCode.LABEL:
+                    out.addLabel(callee.labelName(callee.symbol(i)) + suffix);
+                    break;
+                case VMCode.GOTO:
+                    out.addGoto(callee.labelName(callee.symbol(i)) + suffix);
+                    break;
+                case VMCode.IF_GOTO:
+                    out.addIf(callee.labelName(callee.symbol(i)) + suffix);
+                    break;
+                case VMCode.RETURN:
+                    out.addGoto(endLabel);
+                    returns++;
+                    break;
+                default:
+                    out.copy(callee, i);
+                    break;
+            }
+        }
+        if (returns > 0) {
+            out.addLabel(endLabel);
+        }
+    }
+
+    private static boolean isArgument(VMCode code, int index, int argument) {
+        return code.is(index, VMCode.PUSH) && code.segment(index) == Segment.ARG && code.operand(index) == argument;
+    }
+
+    private static int argumentUses(VMCode code, int argument) {
+        int uses = 0;
+        for (int i = 0; i < code.size(); i++) {
+            if ((code.is(i, VMCode.PUSH) || code.is(i, VMCode.POP)) && code.segment(i) == Segment.ARG
+                    && code.operand(i) == argument) {
+                uses++;
+            }
+        }
+        return uses;
+    }
+}
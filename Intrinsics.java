@@ -0,0 +1,143 @@
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Inline expansions of OS subroutines that take only a few VM instructions,
+ * written in place of the call by the engine. Each expansion finds the
+ * arguments on the stack, as the call would, and leaves the same result
+ * there; it behaves as the subroutine of the standard OS does for every
+ * argument the OS accepts without an error.
+ *
+ * An expansion may use temp 0 and temp 1 as scratch registers, since the
+ * arguments are all computed before it runs.
+ */
+class Intrinsics {
+
+    /**
+     * The inline code of one OS subroutine.
+     */
+    interface Expansion {
+        void expand(VMWriter writer) throws IOException;
+    }
+
+    private final Map<String, Expansion> table = new LinkedHashMap<>();
+    private final Map<String, Integer> argumentCounts = new LinkedHashMap<>();
+    private int expanded;
+
+    private Intrinsics() {
+    }
+
+    /**
+     * Returns the standard intrinsics, except those whose qualified names,
+     * such as Math.abs, are listed as disabled.
+     *
+     * @param disabled the names of the intrinsics to leave out
+     * @return the intrinsics
+     */
+    public static Intrinsics withDefaults(List<String> disabled) {
+        Intrinsics intrinsics = new Intrinsics();
+        // memory[address]
+        intrinsics.add("Memory.peek", 1, writer -> {
+            writer.writePop(Segment.POINTER, 1);
+            writer.writePush(Segment.THAT, 0);
+        });
+        // memory[address] = value, returning 0 as the OS does.
+        intrinsics.add("Memory.poke", 2, writer -> {
+            writer.writePop(Segment.TEMP, 0);
+            writer.writePop(Segment.POINTER, 1);
+            writer.writePush(Segment.TEMP, 0);
+            writer.writePop(Segment.THAT, 0);
+            writer.writePush(Segment.CONST, 0);
+        });
+        // The keyboard register.
+        intrinsics.add("Keyboard.keyPressed", 0, writer -> {
+            writer.writePush(Segment.CONST, 24576);
+            writer.writePop(Segment.POINTER, 1);
+            writer.writePush(Segment.THAT, 0);
+        });
+        // x - (2x & (x < 0)), which is -x for a negative x and x otherwise.
+        intrinsics.add("Math.abs", 1, writer -> {
+            writer.writePop(Segment.TEMP, 0);
+            writer.writePush(Segment.TEMP, 0);
+            writer.writePush(Segment.TEMP, 0);
+            writer.writePush(Segment.TEMP, 0);
+            writer.writeArithmetic(Command.ADD);
+            writer.writePush(Segment.TEMP, 0);
+            writer.writePush(Segment.CONST, 0);
+            writer.writeArithmetic(Command.LT);
+            writer.writeArithmetic(Command.AND);
+            writer.writeArithmetic(Command.SUB);
+        });
+        // b + ((a - b) & (a < b)), and with a > b for the maximum.
+        intrinsics.add("Math.min", 2, writer -> writeSelection(writer, Command.LT));
+        intrinsics.add("Math.max", 2, writer -> writeSelection(writer, Command.GT));
+        // Array.new and Array.dispose only hand their argument on to Memory,
+        // which checks it as well.
+        intrinsics.add("Array.new", 1, writer -> writer.writeCall("Memory.alloc", 1));
+        intrinsics.add("Array.dispose", 1, writer -> writer.writeCall("Memory.deAlloc", 1));
+        intrinsics.table.keySet().removeAll(disabled);
+        return intrinsics;
+    }
+
+    /**
+     * Returns the qualified names of all standard intrinsics.
+     */
+    public static Set<String> names() {
+        return withDefaults(Collections.emptyList()).table.keySet();
+    }
+
+    /**
+     * Writes the inline code of a call if the called subroutine is an
+     * intrinsic taking that many arguments.
+     *
+     * @param name   the qualified name of the called subroutine
+     * @param nArgs  the number of arguments on the stack, counting the object
+     *               of a method
+     * @param writer the writer to write the inline code to
+     * @return whether the call was expanded; if not, nothing was written
+     * @throws IOException if the writer fails
+     */
+    public boolean expand(String name, int nArgs, VMWriter writer) throws IOException {
+        Expansion expansion = table.get(name);
+        if (expansion == null || argumentCounts.get(name) != nArgs) {
+            return false;
+        }
+        expansion.expand(writer);
+        expanded++;
+        return true;
+    }
+
+    /**
+     * Returns the number of calls expanded so far.
+     */
+    public int getExpanded() {
+        return expanded;
+    }
+
+    private void add(String name, int nArgs, Expansion expansion) {
+        table.put(name, expansion);
+        argumentCounts.put(name, nArgs);
+    }
+
+    /**
+     * Writes b + ((a - b) & (a op b)), which is a when the comparison holds
+     * and b otherwise, even when a - b overflows.
+     */
+    private static void writeSelection(VMWriter writer, Command comparison) throws IOException {
+        writer.writePop(Segment.TEMP, 1);
+        writer.writePop(Segment.TEMP, 0);
+        writer.writePush(Segment.TEMP, 1);
+        writer.writePush(Segment.TEMP, 0);
+        writer.writePush(Segment.TEMP, 1);
+        writer.writeArithmetic(Command.SUB);
+        writer.writePush(Segment.TEMP, 0);
+        writer.writePush(Segment.TEMP, 1);
+        writer.writeArithmetic(comparison);
+        writer.writeArithmetic(Command.AND);
+        writer.writeArithmetic(Command.ADD);
+    }
+}
@@ -0,0 +1,349 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Table driven lexer for whole-file sources.
+ * Every input byte is mapped to a character class through a precomputed
+ * table, and a transition table over (state, class) drives the scan. Each
+ * token is classified exactly once, when it ends, and stored in a TokenBuffer
+ * together with its keyword ordinal, symbol character, integer value or
+ * identifier ID.
+ * Keywords are recognised with a perfect hash on the first and last
+ * character and the length of the word.
+ */
+class JackLexer {
+
+    // Character classes.
+    private static final int C_SPACE = 0; // Whitespace other than a line feed.
+    private static final int C_NEWLINE = 1; // Line feed or carriage return.
+    private static final int C_SLASH = 2;
+    private static final int C_STAR = 3;
+    private static final int C_QUOTE = 4;
+    private static final int C_SYMBOL = 5; // Any other symbol.
+    private static final int C_DIGIT = 6;
+    private static final int C_WORD = 7; // Letters, underscore and anything else.
+    private static final int CLASSES = 8;
+
+    // Scanner states.
+    private static final int S_START = 0;
+    private static final int S_SLASH = 1; // Seen '/', may start a comment.
+    private static final int S_LINE_COMMENT = 2;
+    private static final int S_BLOCK_COMMENT = 3;
+    private static final int S_BLOCK_STAR = 4; // Seen '*' inside a block comment.
+    private static final int S_STRING = 5;
+    private static final int S_NUMBER = 6;
+    private static final int S_WORD = 7;
+
+    // Actions, stored above the next state in each transition.
+    private static final int A_NONE = 0; // Consume the character.
+    private static final int A_BEGIN = 1; // Start a token at this character and consume it.
+    private static final int A_SYMBOL = 2; // Emit this character as a symbol.
+    private static final int A_SLASH = 3; // Emit the pending '/' and rescan this character.
+    private static final int A_STRING = 4; // Emit the string ending at this quote.
+    private static final int A_WORD = 5; // Emit the pending word and rescan this character.
+    private static final int ACTION_SHIFT = 4;
+    private static final int STATE_MASK = (1 << ACTION_SHIFT) - 1;
+
+    private static final byte[] CHAR_CLASS = new byte[256];
+    private static final byte[] TRANSITIONS = new byte[8 * CLASSES];
+
+    // Perfect hash table of keywords: slot -> keyword ordinal, or -1.
+    private static final int KEYWORD_SLOTS = 32;
+    private static final byte[] KEYWORD_TABLE = new byte[KEYWORD_SLOTS];
+    private static final KeywordType[] KEYWORDS = KeywordType.values();
+    private static final byte[][] KEYWORD_BYTES = new byte[KEYWORDS.length][];
+
+    static {
+        for (int c = 0; c < 256; c++) {
+            int charClass = C_WORD;
+            if (c == '\n' || c == '\r') {
+                charClass = C_NEWLINE;
+            } else if (Character.isWhitespace(c)) {
+                charClass = C_SPACE;
+            } else if (c == '/') {
+                charClass = C_SLASH;
+            } else if (c == '*') {
+                charClass = C_STAR;
+            } else if (c == '"') {
+                charClass = C_QUOTE;
+            } else if ("{}()[].,;+-&|<>=~".indexOf(c) != -1) {
+                charClass = C_SYMBOL;
+            } else if (c >= '0' && c <= '9') {
+                charClass = C_DIGIT;
+            }
+            CHAR_CLASS[c] = (byte) charClass;
+        }
+
+        for (int charClass = 0; charClass < CLASSES; charClass++) {
+            boolean delimiter = charClass <= C_SYMBOL && charClass != C_QUOTE;
+
+            // START: skip whitespace, emit symbols, begin everything else.
+            if (charClass == C_SPACE || charClass == C_NEWLINE) {
+                transition(S_START, charClass, S_START, A_NONE);
+            } else if (charClass == C_SLASH) {
+                transition(S_START, charClass, S_SLASH, A_BEGIN);
+            } else if (charClass == C_STAR || charClass == C_SYMBOL) {
+                transition(S_START, charClass, S_START, A_SYMBOL);
+            } else if (charClass == C_QUOTE) {
+                transition(S_START, charClass, S_STRING, A_BEGIN);
+            } else if (charClass == C_DIGIT) {
+                transition(S_START, charClass, S_NUMBER, A_BEGIN);
+            } else {
+                transition(S_START, charClass, S_WORD, A_BEGIN);
+            }
+
+            // SLASH: a second '/' or a '*' opens a comment, anything else makes it a symbol.
+            if (charClass == C_SLASH) {
+                transition(S_SLASH, charClass, S_LINE_COMMENT, A_NONE);
+            } else if (charClass == C_STAR) {
+                transition(S_SLASH, charClass, S_BLOCK_COMMENT, A_NONE);
+            } else {
+                transition(S_SLASH, charClass, S_START, A_SLASH);
+            }
+
+            transition(S_LINE_COMMENT, charClass, charClass == C_NEWLINE ? S_START : S_LINE_COMMENT, A_NONE);
+            transition(S_BLOCK_COMMENT, charClass, charClass == C_STAR ? S_BLOCK_STAR : S_BLOCK_COMMENT, A_NONE);
+            transition(S_BLOCK_STAR, charClass,
+                    charClass == C_SLASH ? S_START : charClass == C_STAR ? S_BLOCK_STAR : S_BLOCK_COMMENT, A_NONE);
+
+            if (charClass == C_QUOTE) {
+                transition(S_STRING, charClass, S_START, A_STRING);
+            } else {
+                transition(S_STRING, charClass, S_STRING, A_NONE);
+            }
+
+            // Words and numbers run until whitespace or a symbol.
+            if (delimiter) {
+                transition(S_NUMBER, charClass, S_START, A_WORD);
+                transition(S_WORD, charClass, S_START, A_WORD);
+            } else {
+                transition(S_NUMBER, charClass, charClass == C_DIGIT ? S_NUMBER : S_WORD, A_NONE);
+                transition(S_WORD, charClass, S_WORD, A_NONE);
+            }
+        }
+
+        Arrays.fill(KEYWORD_TABLE, (byte) -1);
+        for (KeywordType keyword : KEYWORDS) {
+            byte[] word = keyword.name().toLowerCase().getBytes(StandardCharsets.US_ASCII);
+            int slot = keywordHash(word[0], word[word.length - 1], word.length);
+            if (KEYWORD_TABLE[slot] != -1) {
+                throw new IllegalStateException("Keyword hash collision: " + keyword);
+            }
+            KEYWORD_TABLE[slot] = (byte) keyword.ordinal();
+            KEYWORD_BYTES[keyword.ordinal()] = word;
+        }
+    }
+
+    private static void transition(int state, int charClass, int next, int action) {
+        TRANSITIONS[state * CLASSES + charClass] = (byte) (next | (action << ACTION_SHIFT));
+    }
+
+    private static int keywordHash(int first, int last, int length) {
+        return (first * 24 + last + length * 19) & (KEYWORD_SLOTS - 1);
+    }
+
+    private JackLexer() {
+    }
+
+    /**
+     * Scans a whole source into a token buffer.
+     *
+     * @param source the source to scan
+     * @return the tokens of the source
+     */
+    public static TokenBuffer scan(SourceBuffer source) {
+        return scan(source, false);
+    }
+
+    /**
+     * Scans a whole source into a token buffer, optionally skipping runs of
+     * whitespace and comment text eight bytes at a time.
+     *
+     * @param source the source to scan
+     * @param swar   whether to use the word-at-a-time skipping
+     * @return the tokens of the source
+     */
+    public static TokenBuffer scan(SourceBuffer source, boolean swar) {
+        return scan(source, swar, new IdentifierPool());
+    }
+
+    /**
+     * Scans a whole source into a token buffer, interning every identifier
+     * into a pool. The value of an identifier token is its ID in the pool.
+     *
+     * @param source      the source to scan
+     * @param swar        whether to use the word-at-a-time skipping
+     * @param identifiers the pool receiving the identifiers
+     * @return the tokens of the source
+     */
+    public static TokenBuffer scan(SourceBuffer source, boolean swar, IdentifierPool identifiers) {
+        TokenBuffer tokens = new TokenBuffer();
+        int length = source.length();
+        int position = 0;
+        int line = 1;
+        int state = S_START;
+        int start = 0;
+        int startLine = 1;
+
+        while (position < length) {
+            char ch = source.charAt(position);
+            if (swar) {
+                int end = position;
+                if (state == S_START && CHAR_CLASS[ch] <= C_NEWLINE && position + 1 < length
+                        && CHAR_CLASS[source.charAt(position + 1)] <= C_NEWLINE) {
+                    // Only runs of whitespace are worth a word-at-a-time skip.
+                    end = source.skipWhitespace(position);
+                } else if (state == S_LINE_COMMENT) {
+                    end = source.indexOfLineEnd(position);
+                } else if (state == S_BLOCK_COMMENT) {
+                    end = source.indexOf('*', position);
+                }
+                if (end != position) {
+                    line += source.countLines(position, end);
+                    position = end;
+                    continue;
+                }
+            }
+
+            int transition = TRANSITIONS[state * CLASSES + CHAR_CLASS[ch]];
+            state = transition & STATE_MASK;
+
+            switch (transition >>> ACTION_SHIFT) {
+                case A_BEGIN:
+                    start = position;
+                    startLine = line;
+                    break;
+                case A_SYMBOL:
+                    tokens.add(TokenType.SYMBOL, position, 1, line, ch);
+                    break;
+                case A_SLASH:
+                    tokens.add(TokenType.SYMBOL, start, 1, startLine, '/');
+                    continue; // Rescan this character from the start state.
+                case A_STRING:
+                    tokens.add(TokenType.STRING_CONST, start, position + 1 - start, startLine, 0);
+                    break;
+                case A_WORD:
+                    addWord(tokens, source, identifiers, start, position - start, startLine);
+                    continue; // Rescan this character from the start state.
+                default:
+                    break;
+            }
+
+            if (ch == '\n') {
+                line++;
+            }
+            position++;
+        }
+
+        // Finish a token cut off by the end of the input.
+        if (state == S_SLASH) {
+            tokens.add(TokenType.SYMBOL, start, 1, startLine, '/');
+        } else if (state == S_STRING) {
+            tokens.add(TokenType.IDENTIFIER, start, length - start, startLine,
+                    identifiers.intern(source, start, length - start));
+        } else if (state == S_NUMBER || state == S_WORD) {
+            addWord(tokens, source, identifiers, start, length - start, startLine);
+        }
+        return tokens;
+    }
+
+    /**
+     * Classifies a keyword, identifier or integer token and adds it to the
+     * token buffer. Integers too large for an int get the value -1, so that
+     * intVal() fails on them like the reader based tokenizer does.
+     */
+    private static void addWord(TokenBuffer tokens, SourceBuffer source, IdentifierPool identifiers, int start,
+            int count, int line) {
+        char first = source.charAt(start);
+        if (first >= '0' && first <= '9') {
+            long value = 0;
+            for (int i = 0; i < count; i++) {
+                char c = source.charAt(start + i);
+                if (c < '0' || c > '9') {
+                    tokens.add(TokenType.IDENTIFIER, start, count, line, identifiers.intern(source, start, count));
+                    return;
+                }
+                value = Math.min(value * 10 + (c - '0'), Integer.MAX_VALUE + 1L);
+            }
+            tokens.add(TokenType.INT_CONST, start, count, line, value > Integer.MAX_VALUE ? -1 : (int) value);
+            return;
+        }
+
+        int keyword = KEYWORD_TABLE[keywordHash(first, source.charAt(start + count - 1), count)];
+        if (keyword != -1 && matches(KEYWORD_BYTES[keyword], source, start, count)) {
+            tokens.add(TokenType.KEYWORD, start, count, line, keyword);
+        } else {
+            tokens.add(TokenType.IDENTIFIER, start, count, line, identifiers.intern(source, start, count));
+        }
+    }
+
+    private static boolean matches(byte[] word, SourceBuffer source, int start, int count) {
+        if (word.length != count) {
+            return false;
+        }
+        for (int i = 0; i < count; i++) {
+            if (source.charAt(start + i) != word[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns whether a character is a Jack symbol.
+     */
+    public static boolean isSymbol(char ch) {
+        int charClass = ch < 256 ? CHAR_CLASS[ch] : C_WORD;
+        return charClass == C_SYMBOL || charClass == C_SLASH || charClass == C_STAR;
+    }
+
+    /**
+     * Returns the keyword a token spells, or null if it is not a keyword.
+     */
+    public static KeywordType keywordOf(String token) {
+        int count = token.length();
+        if (count == 0 || token.charAt(0) >= 128 || token.charAt(count - 1) >= 128) {
+            return null;
+        }
+        int keyword = KEYWORD_TABLE[keywordHash(token.charAt(0), token.charAt(count - 1), count)];
+        if (keyword == -1) {
+            return null;
+        }
+        byte[] word = KEYWORD_BYTES[keyword];
+        if (word.length != count) {
+            return null;
+        }
+        for (int i = 0; i < count; i++) {
+            if (token.charAt(i) != word[i]) {
+                return null;
+            }
+        }
+        return KEYWORDS[keyword];
+    }
+
+    /**
+     * Classifies a complete token the same way the tokenizer always has:
+     * keywords, then single symbols, then digit strings, then quoted strings.
+     */
+    public static TokenType classify(String token) {
+        if (keywordOf(token) != null) {
+            return TokenType.KEYWORD;
+        }
+        int count = token.length();
+        if (count == 1 && isSymbol(token.charAt(0))) {
+            return TokenType.SYMBOL;
+        }
+        boolean digits = count > 0;
+        for (int i = 0; i < count && digits; i++) {
+            char c = token.charAt(i);
+            digits = c >= '0' && c <= '9';
+        }
+        if (digits) {
+            return TokenType.INT_CONST;
+        }
+        if (count > 0 && token.charAt(0) == '"' && token.charAt(count - 1) == '"') {
+            return TokenType.STRING_CONST;
+        }
+        return TokenType.IDENTIFIER;
+    }
+}
@@ -1,34 +1,61 @@
 import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
-import java.util.Arrays;
-import java.util.List;
+import java.io.Reader;
 
 
 public class JackTokenizer {
 
     private BufferedReader reader; // Reader for reading the input file line by line.
+    private SourceBuffer source; // Whole-file input, used instead of the reader when set.
+    private TokenBuffer tokens; // All tokens of the whole-file input.
+    private int cursor; // Index of the current token in the token buffer.
+    private final IdentifierPool identifiers = new IdentifierPool(); // IDs of all identifiers seen.
     private String currentToken; // The current token being processed.
     private String nextToken; // The next token to be processed.
 
-    // List of all keywords in the Jack programming language.
-    private List<String> keywords = Arrays.asList(
-            "class", "constructor", "function", "method", "field", "static", "var",
-            "int", "char", "boolean", "void", "true", "false", "null", "this",
-            "let", "do", "if", "else", "while", "return");
+    private TokenType currentType; // Type of the current token, classified once per token.
+    private KeywordType currentKeyword; // Keyword of the current token, or null.
 
-    // List of all symbols in the Jack programming language.
-    private List<String> symbols = Arrays.asList(
-            "{", "}", "(", ")", "[", "]", ".", ",", ";", "+", "-", "*", "/", "&",
-            "|", "<", ">", "=", "~");
+    // All keywords, indexed by the ordinal stored in the token buffer.
+    private static final KeywordType[] KEYWORDS = KeywordType.values();
 
 
     public JackTokenizer(String inputFile) throws IOException {
-        this.reader = new BufferedReader(new FileReader(inputFile));
+        this(new FileReader(inputFile));
+    }
+
+
+    /**
+     * Creates a tokenizer reading the source character by character from a
+     * reader, exactly like the file based tokenizer.
+     */
+    public JackTokenizer(Reader input) throws IOException {
+        this.reader = new BufferedReader(input);
         loadNextToken(); // Preload the first token.
     }
 
 
+    /**
+     * Creates a tokenizer over a whole-file source. The source is scanned once
+     * into a token buffer, and the tokenizer then acts as a cursor over it.
+     */
+    public JackTokenizer(SourceBuffer source) {
+        this(source, false);
+    }
+
+
+    /**
+     * Creates a tokenizer over a whole-file source, optionally skipping
+     * whitespace and comments a machine word at a time while scanning.
+     */
+    public JackTokenizer(SourceBuffer source, boolean swar) {
+        this.source = source;
+        this.tokens = JackLexer.scan(source, swar, identifiers);
+        this.cursor = -1;
+    }
+
+
     private void loadNextToken() throws IOException {
         StringBuilder tokenBuilder = new StringBuilder(); // Temporary storage for building the token.
         int c;
@@ -68,7 +95,7 @@ public class JackTokenizer {
             }
 
             // Handle symbols.
-            if (symbols.contains(String.valueOf(ch))) {
+            if (JackLexer.isSymbol(ch)) {
                 if (tokenBuilder.length() == 0) {
                     tokenBuilder.append(ch); // Add symbol as a token.
                     break;
@@ -104,12 +131,23 @@ public class JackTokenizer {
 
 
     public boolean hasMoreTokens() {
+        if (tokens != null) {
+            return cursor + 1 < tokens.size();
+        }
         return nextToken != null;
     }
 
 
     public void advance() {
+        if (tokens != null) {
+            cursor++; // Move the cursor to the next token.
+            return;
+        }
         currentToken = nextToken; // Set the current token.
+        if (currentToken != null) {
+            currentKeyword = JackLexer.keywordOf(currentToken);
+            currentType = currentKeyword != null ? TokenType.KEYWORD : JackLexer.classify(currentToken);
+        }
         try {
             loadNextToken(); // Load the next token.
         } catch (IOException e) {
@@ -118,48 +156,156 @@ public class JackTokenizer {
     }
 
 
+    /**
+     * Returns the position of the current token, to be passed to rewind().
+     * Only supported for whole-file sources.
+     */
+    public int mark() {
+        requireTokenBuffer();
+        return cursor;
+    }
+
+
+    /**
+     * Moves back (or forward) to a position returned by mark().
+     */
+    public void rewind(int mark) {
+        requireTokenBuffer();
+        cursor = mark;
+    }
+
+
+    /**
+     * Returns the type of the token the given number of tokens ahead of the
+     * current one, or null past the end of the input.
+     * Only supported for whole-file sources.
+     */
+    public TokenType peekType(int ahead) {
+        requireTokenBuffer();
+        int index = cursor + ahead;
+        return index < tokens.size() ? tokens.type(index) : null;
+    }
+
+
+    /**
+     * Returns the symbol the given number of tokens ahead of the current one,
+     * or 0 if that token is not a symbol.
+     */
+    public char peekSymbol(int ahead) {
+        return peekType(ahead) == TokenType.SYMBOL ? (char) tokens.value(cursor + ahead) : 0;
+    }
+
+
+    /**
+     * Returns the line of the current token, or 0 if lines are not tracked.
+     */
+    public int line() {
+        return tokens != null && cursor >= 0 && cursor < tokens.size() ? tokens.line(cursor) : 0;
+    }
+
+
+    private void requireTokenBuffer() {
+        if (tokens == null) {
+            throw new IllegalStateException("Lookahead requires a whole-file source");
+        }
+    }
+
+
     public TokenType tokenType() {
-        if (keywords.contains(currentToken)) {
-            return TokenType.KEYWORD;
-        } else if (symbols.contains(currentToken)) {
-            return TokenType.SYMBOL;
-        } else if (currentToken.matches("\\d+")) {
-            return TokenType.INT_CONST;
-        } else if (currentToken.startsWith("\"") && currentToken.endsWith("\"")) {
-            return TokenType.STRING_CONST;
-        } else {
-            return TokenType.IDENTIFIER;
+        if (tokens != null) {
+            if (cursor >= tokens.size()) {
+                throw new IllegalStateException("Unexpected end of input");
+            }
+            return tokens.type(cursor);
         }
+        if (currentToken == null) {
+            throw new IllegalStateException("Unexpected end of input");
+        }
+        return currentType;
     }
 
 
     public KeywordType keyword() {
-        String cleanKeyword = currentToken.trim().toUpperCase();
-        return KeywordType.valueOf(cleanKeyword);
+        if (tokens != null) {
+            if (tokens.type(cursor) != TokenType.KEYWORD) {
+                throw new IllegalArgumentException("Not a keyword: " + getCurrentToken());
+            }
+            return KEYWORDS[tokens.value(cursor)];
+        }
+        if (currentKeyword == null) {
+            throw new IllegalArgumentException("Not a keyword: " + currentToken);
+        }
+        return currentKeyword;
     }
 
 
     public String getCurrentToken() {
+        if (tokens != null) {
+            return cursor < tokens.size() ? source.text(tokens.start(cursor), tokens.length(cursor)) : null;
+        }
         return currentToken;
     }
 
 
     public char symbol() {
+        if (tokens != null) {
+            return source.charAt(tokens.start(cursor));
+        }
         return currentToken.charAt(0);
     }
 
 
     public int intVal() {
+        if (tokens != null) {
+            int value = tokens.value(cursor);
+            if (tokens.type(cursor) != TokenType.INT_CONST || value < 0) {
+                throw new NumberFormatException("For input string: \"" + getCurrentToken() + "\"");
+            }
+            return value;
+        }
         return Integer.parseInt(currentToken);
     }
 
 
     public String identifier() {
+        if (tokens != null) {
+            if (tokens.type(cursor) == TokenType.IDENTIFIER) {
+                return identifiers.name(tokens.value(cursor)); // Interned while scanning.
+            }
+            return source.text(tokens.start(cursor), tokens.length(cursor));
+        }
         return currentToken;
     }
 
 
+    /**
+     * Returns the ID of the current token in the identifier pool, interning
+     * it if needed. For whole-file sources an identifier was interned while
+     * scanning, and this is a plain lookup.
+     */
+    public int identifierId() {
+        if (tokens != null) {
+            if (tokens.type(cursor) == TokenType.IDENTIFIER) {
+                return tokens.value(cursor);
+            }
+            return identifiers.intern(source, tokens.start(cursor), tokens.length(cursor));
+        }
+        return identifiers.intern(currentToken);
+    }
+
+
+    /**
+     * Returns the pool holding the IDs returned by identifierId().
+     */
+    public IdentifierPool getIdentifierPool() {
+        return identifiers;
+    }
+
+
     public String stringVal() {
+        if (tokens != null) {
+            return source.text(tokens.start(cursor) + 1, tokens.length(cursor) - 2); // Remove quotes.
+        }
         return currentToken.substring(1, currentToken.length() - 1); // Remove quotes.
     }
 }
@@ -0,0 +1,299 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Builds all inputs as one program. Every class is compiled to VMCode first.
+ * When optimizing, small subroutines are then inlined across classes. Then
+ * the subroutines that cannot be reached from the entry points are dropped,
+ * as is the code after a return or goto, by following the calls from the
+ * entry points. The rest is written next to each source, or linked into a
+ * single file.
+ */
+class Linker {
+
+    // Where a program starts: the VM calls Sys.init, which calls Main.main
+    // once the OS is initialized. Main.main is also a root for programs
+    // built without the OS sources.
+    private static final List<String> ENTRY_POINTS = Arrays.asList("Sys.init", "Main.main");
+
+    // Static variables live at RAM addresses 16 to 255 on the Hack platform.
+    private static final int MAX_STATICS = 240;
+
+    private Linker() {
+    }
+
+    /**
+     * Compiles, shakes and writes a whole program. Nothing is written if any
+     * class fails to compile, since its calls would be missing from the call
+     * graph.
+     *
+     * @param files   the .jack files making up the program
+     * @param options the compiler options
+     * @param out     the stream for progress output
+     * @param err     the stream for error output
+     * @return the number of files that failed to compile
+     */
+    static int run(List<File> files, CompilerOptions options, PrintStream out, PrintStream err) {
+        long start = System.nanoTime();
+        List<List<VMCode>> classes = compileAll(files, options, out, err);
+        int failures = 0;
+        for (List<VMCode> code : classes) {
+            if (code == null) {
+                failures++;
+            }
+        }
+
+        if (failures == 0) {
+            try {
+                link(files, classes, options, out);
+            } catch (IOException e) {
+                err.println("An error occurred while writing the program: " + e.getMessage());
+                failures = files.size();
+            }
+        }
+
+        out.printf("Linked %d file(s), %d failed, in %d ms%n", files.size(), failures,
+                (System.nanoTime() - start) / 1_000_000);
+        return failures;
+    }
+
+    /**
+     * Compiles every file to VMCode on as many workers as the options ask
+     * for, printing the log of each file in order.
+     *
+     * @return the code of each class, in the order of the files, with null
+     *         for the files that failed
+     */
+    private static List<List<VMCode>> compileAll(List<File> files, CompilerOptions options, PrintStream out,
+            PrintStream err) {
+        List<List<VMCode>> classes = new ArrayList<>();
+        int workers = Math.min(options.getJobs(), files.size());
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(workers, 1));
+        try {
+            List<Future<List<VMCode>>> futures = new ArrayList<>();
+            List<StringBuilder> logs = new ArrayList<>();
+            for (File file : files) {
+                StringBuilder log = new StringBuilder();
+                logs.add(log);
+                futures.add(executor.submit(() -> compile(file, options, log)));
+            }
+            for (int i = 0; i < files.size(); i++) {
+                List<VMCode> code = null;
+                Throwable error = null;
+                try {
+                    code = futures.get(i).get();
+                } catch (ExecutionException e) {
+                    error = e.getCause();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    error = e;
+                }
+                out.print(logs.get(i));
+                if (error != null) {
+                    err.println("Error occurred while processing file: " + files.get(i).getAbsolutePath());
+                    error.printStackTrace(err);
+                }
+                classes.add(code);
+            }
+        } finally {
+            executor.shutdown();
+        }
+        return classes;
+    }
+
+    private static List<VMCode> compile(File file, CompilerOptions options, StringBuilder log) throws IOException {
+        String inputFileName = file.getAbsolutePath();
+        log.append("Analyzing file: ").append(inputFileName).append(System.lineSeparator());
+        JackTokenizer tokenizer = options.isMemoryMapped()
+                ? new JackTokenizer(SourceBuffer.open(inputFileName), options.isSwar())
+                : new JackTokenizer(inputFileName);
+        CompilationEngine engine = new CompilationEngine(tokenizer, options);
+        engine.compileClass();
+        List<VMCode> code = engine.getCode();
+        for (String line : engine.getOptimizationReport()) {
+            log.append(line).append(System.lineSeparator());
+        }
+        return code;
+    }
+
+    /**
+     * Drops what the program cannot reach and writes the rest.
+     */
+    private static void link(List<File> files, List<List<VMCode>> classes, CompilerOptions options,
+            PrintStream out) throws IOException {
+        // Every function by name; a function defined twice keeps its first definition.
+        Map<String, VMCode> functions = new LinkedHashMap<>();
+        Set<VMCode> duplicates = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (int i = 0; i < files.size(); i++) {
+            for (VMCode code : classes.get(i)) {
+                if (functions.putIfAbsent(code.getName(), code) != null) {
+                    duplicates.add(code);
+                    out.println("Duplicate function " + code.getName() + " in " + files.get(i).getAbsolutePath()
+                            + " left out");
+                }
+            }
+        }
+
+        if (options.isOptimize() && !options.getDisabled().contains("inlining")) {
+            Inliner inliner = new Inliner(options.getInlineSize(), options.getInlineBudget());
+            inliner.inline(functions);
+            out.println(inliner.getReport());
+            if (!options.getDisabled().contains("common-subexpressions")) {
+                // Inlined accessors load the same fields again.
+                CommonSubexpressionEliminator subexpressions = new CommonSubexpressionEliminator();
+                functions.replaceAll((name, code) -> subexpressions.optimize(code));
+                out.printf("Common subexpression elimination saved %d VM instructions after inlining%n",
+                        subexpressions.getSaved());
+            }
+            PeepholeOptimizer peephole = PeepholeOptimizer.withDefaults(options.getDisabled());
+            functions.replaceAll((name, code) -> peephole.optimize(code));
+        }
+
+        Set<String> reachable = reachable(functions);
+        PeepholeOptimizer deadCode = new PeepholeOptimizer(Arrays.asList(
+                new PeepholeRules.UnreachableCode(), new PeepholeRules.UnusedLabel()));
+        int instructions = 0;
+        int keptInstructions = 0;
+        List<List<VMCode>> kept = new ArrayList<>();
+        for (List<VMCode> code : classes) {
+            List<VMCode> keptCode = new ArrayList<>();
+            for (VMCode subroutine : code) {
+                if (duplicates.contains(subroutine)) {
+                    instructions += subroutine.size();
+                    continue;
+                }
+                subroutine = functions.get(subroutine.getName());
+                instructions += subroutine.size();
+                if (!reachable.contains(subroutine.getName())) {
+                    out.println("Removed " + subroutine.getName() + " (" + subroutine.size() + " instructions)");
+                    continue;
+                }
+                VMCode live = deadCode.optimize(subroutine);
+                keptInstructions += live.size();
+                keptCode.add(live);
+            }
+            kept.add(keptCode);
+        }
+        out.printf("Tree shaking kept %d of %d subroutines and %d of %d VM instructions%n",
+                reachable.size(), functions.size(), keptInstructions, instructions);
+
+        if (options.getLinkFile() != null) {
+            // The static segment belongs to the file, so the statics of each
+            // class move up past those of the classes before it.
+            List<VMCode> program = new ArrayList<>();
+            int statics = 0;
+            for (List<VMCode> code : kept) {
+                int count = 0;
+                for (VMCode subroutine : code) {
+                    count = Math.max(count, staticCount(subroutine));
+                    program.add(relocateStatics(subroutine, statics));
+                }
+                statics += count;
+            }
+            if (statics > MAX_STATICS) {
+                out.println("Warning: the program uses " + statics + " static variables, more than the "
+                        + MAX_STATICS + " the Hack platform has room for");
+            }
+            write(options.getLinkFile(), program, options);
+            out.println("Output written to: " + options.getLinkFile());
+        } else {
+            for (int i = 0; i < files.size(); i++) {
+                String outputFileName = files.get(i).getAbsolutePath().replace(".jack", options.getOutputExtension());
+                write(outputFileName, kept.get(i), options);
+                out.println("Output written to: " + outputFileName);
+            }
+        }
+    }
+
+    /**
+     * Returns the names of the functions the entry points can call, directly
+     * or not. Without any entry point in the program, all functions are
+     * taken as reachable.
+     */
+    private static Set<String> reachable(Map<String, VMCode> functions) {
+        Set<String> reachable = new HashSet<>();
+        Deque<String> pending = new ArrayDeque<>();
+        for (String entryPoint : ENTRY_POINTS) {
+            if (functions.containsKey(entryPoint) && reachable.add(entryPoint)) {
+                pending.add(entryPoint);
+            }
+        }
+        if (pending.isEmpty()) {
+            return functions.keySet();
+        }
+        while (!pending.isEmpty()) {
+            VMCode code = functions.get(pending.remove());
+            for (int i = 0; i < code.size(); i++) {
+                if (code.opcode(i) == VMCode.CALL) {
+                    String callee = code.callee(i);
+                    // Calls to functions outside the program, such as a prebuilt OS, are left alone.
+                    if (functions.containsKey(callee) && reachable.add(callee)) {
+                        pending.add(callee);
+                    }
+                }
+            }
+        }
+        return reachable;
+    }
+
+    /**
+     * Returns the number of static variables a subroutine needs: one more
+     * than the highest static index it uses.
+     */
+    private static int staticCount(VMCode code) {
+        int count = 0;
+        for (int i = 0; i < code.size(); i++) {
+            if ((code.is(i, VMCode.PUSH) || code.is(i, VMCode.POP)) && code.segment(i) == Segment.STATIC) {
+                count = Math.max(count, code.operand(i) + 1);
+            }
+        }
+        return count;
+    }
+
+    private static VMCode relocateStatics(VMCode code, int offset) {
+        if (offset == 0) {
+            return code;
+        }
+        VMCode relocated = code.emptyCopy();
+        for (int i = 0; i < code.size(); i++) {
+            if (code.is(i, VMCode.PUSH) && code.segment(i) == Segment.STATIC) {
+                relocated.addPush(Segment.STATIC, code.operand(i) + offset);
+            } else if (code.is(i, VMCode.POP) && code.segment(i) == Segment.STATIC) {
+                relocated.addPop(Segment.STATIC, code.operand(i) + offset);
+            } else {
+                relocated.copy(code, i);
+            }
+        }
+        return relocated;
+    }
+
+    private static void write(String outputFileName, List<VMCode> program, CompilerOptions options)
+            throws IOException {
+        VMWriter writer = options.getOutputFormat() == OutputFormat.BINARY
+                ? new BinaryVMWriter(outputFileName, options.getFlushPolicy())
+                : new VMWriter(outputFileName, options.getFlushPolicy());
+        try {
+            for (VMCode code : program) {
+                code.lower(writer);
+            }
+        } finally {
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,366 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Moves the expressions of a while loop whose value cannot change while the
+ * loop runs out of the loop: each is computed once before the loop into a
+ * fresh local, which the loop pushes instead.
+ *
+ * A variable is invariant when the loop never pops into it. Calls may change
+ * fields, statics and arrays, but not locals or arguments, and a store
+ * through that may change any field, since arrays and objects share the
+ * heap. Array elements are never hoisted: a loop that does not run must not
+ * read them. Only expressions with an operator and a variable are hoisted,
+ * as a single push costs as much as the push of the local, and constants are
+ * left to the constant folder.
+ */
+class LoopInvariantHoister {
+
+    private int loops;
+    private int hoisted;
+    private int moved;
+
+    // The subroutine being compiled and its first local added for hoisting.
+    private VMCode current;
+    private int firstHoistedLocal;
+
+    // A value on the stack while the loop is scanned.
+    private static final class Value {
+        final int start;
+        final int end;
+        final boolean invariant;
+        final boolean hoistable; // Invariant, with an operator and a variable.
+        final boolean variable;
+
+        Value(int start, int end, boolean invariant, boolean hoistable, boolean variable) {
+            this.start = start;
+            this.end = end;
+            this.invariant = invariant;
+            this.hoistable = hoistable;
+            this.variable = variable;
+        }
+    }
+
+    /**
+     * Returns the number of loops that had expressions hoisted.
+     */
+    public int getLoops() {
+        return loops;
+    }
+
+    /**
+     * Returns the number of expressions hoisted, counting those computed into
+     * the same local once.
+     */
+    public int getHoisted() {
+        return hoisted;
+    }
+
+    /**
+     * Returns the number of computations of hoisted locals that were moved
+     * out of an enclosing loop in turn.
+     */
+    public int getMoved() {
+        return moved;
+    }
+
+    /**
+     * Hoists the invariant expressions of a loop that ends the code, raising
+     * the local count of the code for the locals it adds. Loops must be
+     * hoisted innermost first, as they are compiled.
+     *
+     * @param code  the code of the subroutine being compiled
+     * @param start the index of the first instruction of the loop
+     */
+    public void hoist(VMCode code, int start) {
+        if (code != current) {
+            current = code;
+            firstHoistedLocal = code.getLocalCount();
+        }
+        List<int[]> ranges = invariantRanges(code, start);
+        if (ranges.isEmpty()) {
+            return;
+        }
+
+        VMCode loop = code.cut(start);
+        int[] slots = new int[ranges.size()];
+        Map<String, Integer> locals = new HashMap<>();
+        for (int r = 0; r < ranges.size(); r++) {
+            int[] range = ranges.get(r);
+            if (range[2] >= 0) {
+                // The computation of a local hoisted out of an inner loop
+                // moves as a whole, pop included.
+                for (int i = range[0]; i < range[1]; i++) {
+                    code.copy(loop, i - start);
+                }
+                moved++;
+                continue;
+            }
+            String key = key(loop, range[0] - start, range[1] - start);
+            Integer local = locals.get(key);
+            if (local == null) {
+                local = code.getLocalCount();
+                code.setLocalCount(local + 1);
+                locals.put(key, local);
+                for (int i = range[0]; i < range[1]; i++) {
+                    code.copy(loop, i - start);
+                }
+                code.addPop(Segment.LOCAL, local);
+            }
+            slots[r] = local;
+            hoisted++;
+        }
+
+        int r = 0;
+        for (int i = 0; i < loop.size(); i++) {
+            if (r < ranges.size() && ranges.get(r)[0] == i + start) {
+                if (ranges.get(r)[2] < 0) {
+                    code.addPush(Segment.LOCAL, slots[r]);
+                }
+                i = ranges.get(r)[1] - start - 1;
+                r++;
+            } else {
+                code.copy(loop, i);
+            }
+        }
+        loops++;
+    }
+
+    /**
+     * Returns the ranges of instructions, from an index of the code on, that
+     * compute an invariant value worth hoisting, in order. Each range has its
+     * start, its end, and the hoisted local it pops into when it is the
+     * computation of such a local, or -1.
+     */
+    private List<int[]> invariantRanges(VMCode code, int start) {
+        int nLocals = code.getLocalCount();
+        int nArgs = Math.max(code.getArgumentCount(), 0);
+        boolean[] assignedLocals = new boolean[nLocals];
+        boolean[] assignedArguments = new boolean[nArgs];
+        boolean[] assignedFields = new boolean[256];
+        boolean[] assignedStatics = new boolean[256];
+        boolean heapWritten = false;
+        boolean thisChanged = false;
+        for (int i = start; i < code.size(); i++) {
+            if (code.is(i, VMCode.CALL) && !isPure(code, i)) {
+                heapWritten = true;
+            }
+            if (!code.is(i, VMCode.POP)) {
+                continue;
+            }
+            int index = code.operand(i);
+            switch (code.segment(i)) {
+                case LOCAL:
+                    assign(assignedLocals, index);
+                    break;
+                case ARG:
+                    assign(assignedArguments, index);
+                    break;
+                case THIS:
+                    assign(assignedFields, index);
+                    break;
+                case STATIC:
+                    assign(assignedStatics, index);
+                    break;
+                case THAT:
+                    heapWritten = true;
+                    break;
+                case POINTER:
+                    thisChanged |= index == 0;
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        List<int[]> ranges = new ArrayList<>();
+        Deque<Value> stack = new ArrayDeque<>();
+        for (int i = start; i < code.size(); i++) {
+            switch (code.opcode(i)) {
+                case VMCode.PUSH:
+                    Segment segment = code.segment(i);
+                    int index = code.operand(i);
+                    boolean invariant;
+                    switch (segment) {
+                        case CONST:
+                            invariant = true;
+                            break;
+                        case LOCAL:
+                            invariant = !isAssigned(assignedLocals, index);
+                            break;
+                        case ARG:
+                            invariant = !isAssigned(assignedArguments, index);
+                            break;
+                        case THIS:
+                            invariant = !isAssigned(assignedFields, index) && !heapWritten && !thisChanged;
+                            break;
+                        case STATIC:
+                            invariant = !isAssigned(assignedStatics, index) && !heapWritten;
+                            break;
+                        case POINTER:
+                            invariant = index == 0 && !thisChanged;
+                            break;
+                        default:
+                            invariant = false;
+                            break;
+                    }
+                    stack.push(new Value(i, i + 1, invariant, false, segment != Segment.CONST));
+                    break;
+                case VMCode.ARITHMETIC:
+                    Command command = code.command(i);
+                    if (command == Command.NEG || command == Command.NOT) {
+                        if (stack.isEmpty()) {
+                            return new ArrayList<>();
+                        }
+                        Value operand = stack.pop();
+                        stack.push(combine(operand, operand, operand.invariant, i));
+                        break;
+                    }
+                    if (!combineTop(stack, ranges, i)) {
+                        return new ArrayList<>();
+                    }
+                    break;
+                case VMCode.CALL:
+                    if (isPure(code, i)) {
+                        if (!combineTop(stack, ranges, i)) {
+                            return new ArrayList<>();
+                        }
+                        break;
+                    }
+                    for (int argument = 0; argument < code.operand(i); argument++) {
+                        if (!consume(stack, ranges)) {
+                            return new ArrayList<>();
+                        }
+                    }
+                    stack.push(new Value(i, i + 1, false, false, true));
+                    break;
+                case VMCode.POP:
+                    // The locals hoisted out of inner loops are only ever
+                    // set once, so an invariant one can move out of this
+                    // loop too, and is then invariant itself.
+                    int local = code.operand(i);
+                    if (code.segment(i) == Segment.LOCAL && local >= firstHoistedLocal && !stack.isEmpty()
+                            && stack.peek().invariant) {
+                        ranges.add(new int[] {stack.pop().start, i + 1, local});
+                        assignedLocals[local] = false;
+                        break;
+                    }
+                    if (!consume(stack, ranges)) {
+                        return new ArrayList<>();
+                    }
+                    break;
+                case VMCode.IF_GOTO:
+                    if (!consume(stack, ranges)) {
+                        return new ArrayList<>();
+                    }
+                    break;
+                case VMCode.RETURN:
+                    if (!consume(stack, ranges)) {
+                        return new ArrayList<>();
+                    }
+                    stack.clear();
+                    break;
+                default:
+                    // A value computed before a label or jump must stay
+                    // where it is, or the label would move with it.
+                    List<Value> values = new ArrayList<>(stack);
+                    stack.clear();
+                    for (int v = values.size() - 1; v >= 0; v--) {
+                        Value value = values.get(v);
+                        stack.push(new Value(value.start, value.end, false, false, true));
+                    }
+                    break;
+            }
+        }
+        ranges.sort((a, b) -> Integer.compare(a[0], b[0]));
+        return ranges;
+    }
+
+    /**
+     * Replaces the two values on top of the stack with the result of the
+     * binary operation at an index, hoisting whichever operand is invariant
+     * when the result is not.
+     *
+     * @return false if the stack holds fewer than two values
+     */
+    private static boolean combineTop(Deque<Value> stack, List<int[]> ranges, int index) {
+        if (stack.size() < 2) {
+            return false;
+        }
+        Value right = stack.pop();
+        Value left = stack.pop();
+        boolean invariant = left.invariant && right.invariant;
+        if (!invariant) {
+            addRange(left, ranges);
+            addRange(right, ranges);
+        }
+        stack.push(combine(left, right, invariant, index));
+        return true;
+    }
+
+    private static Value combine(Value left, Value right, boolean invariant, int index) {
+        boolean variable = left.variable || right.variable;
+        return new Value(left.start, index + 1, invariant, invariant && variable, variable);
+    }
+
+    /**
+     * Takes the value on top of the stack, hoisting it if it is invariant.
+     *
+     * @return false if the stack is empty
+     */
+    private static boolean consume(Deque<Value> stack, List<int[]> ranges) {
+        if (stack.isEmpty()) {
+            return false;
+        }
+        addRange(stack.pop(), ranges);
+        return true;
+    }
+
+    private static void addRange(Value value, List<int[]> ranges) {
+        if (value.hoistable) {
+            ranges.add(new int[] {value.start, value.end, -1});
+        }
+    }
+
+    /**
+     * Returns whether a call only computes a value from its arguments. Only
+     * multiplication is taken as such: a division may stop the program on a
+     * zero that the loop would never divide by.
+     */
+    private static boolean isPure(VMCode code, int index) {
+        return code.operand(index) == 2 && code.callee(index).equals("Math.multiply");
+    }
+
+    private static void assign(boolean[] assigned, int index) {
+        if (index < assigned.length) {
+            assigned[index] = true;
+        }
+    }
+
+    // Indexes past the end of the table are taken as assigned.
+    private static boolean isAssigned(boolean[] assigned, int index) {
+        return index >= assigned.length || assigned[index];
+    }
+
+    /**
+     * Returns a key telling apart the instructions of a range, so that the
+     * same expression is computed into one local.
+     */
+    private static String key(VMCode code, int from, int to) {
+        StringBuilder key = new StringBuilder();
+        for (int i = from; i < to; i++) {
+            key.append(code.opcode(i)).append(' ');
+            if (code.is(i, VMCode.CALL)) {
+                key.append(code.callee(i)).append(' ');
+            } else {
+                key.append(code.segment(i)).append(' ');
+            }
+            key.append(code.operand(i)).append(';');
+        }
+        return key.toString();
+    }
+}
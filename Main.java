@@ -1,89 +1,398 @@
 import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * JackAnalyzer: This class serves as the entry point for analyzing .jack files.
- * It processes either a single .jack file or all .jack files in a specified
- * folder,
- * generating XML output for tokens and parsed structure.
+ * It processes .jack files and folders of .jack files given on the command
+ * line,
+ * generating VM output next to each source file.
+ * Folders can be traversed recursively and compiled by several worker threads.
  */
 public class Main {
 
     public static void main(String[] args) {
-        // Check if the correct number of arguments is provided.
-        if (args.length != 1) {
-            System.out.println("Usage: JackAnalyzer <input file or folder>");
+        CompilerOptions options;
+        try {
+            options = CompilerOptions.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.out.println(CompilerOptions.USAGE);
             return;
         }
 
-        String inputPath = args[0]; // Input file or folder path.
-        File inputFile = new File(inputPath);
+        if (options.isStdin()) {
+            System.exit(StreamMode.run(options, System.in, System.out, System.err));
+        }
 
         try {
+            if (options.getConnectAddress() != null) {
+                System.exit(CompileClient.run(options.getConnectAddress(), options.getForwardedArgs(),
+                        System.out, System.err));
+            } else if (options.getServerAddress() != null) {
+                CompileServer.run(options.getServerAddress(), System.out, System.err);
+                return;
+            }
+        } catch (IOException e) {
+            System.err.println("An error occurred while talking to the compile server: " + e.getMessage());
+            System.exit(1);
+        }
+
+        int exitCode = run(options, System.out, System.err);
+
+        if (options.isWatch()) {
+            try {
+                WatchMode.run(options, System.out, System.err);
+            } catch (IOException e) {
+                System.err.println("An error occurred while watching for changes: " + e.getMessage());
+                System.exit(1);
+            }
+        } else if (exitCode != 0) {
+            System.exit(exitCode);
+        }
+    }
+
+    /**
+     * Compiles all inputs of the options once.
+     *
+     * @param options the parsed command line options.
+     * @param out     the stream for progress output.
+     * @param err     the stream for error output.
+     * @return the exit code: 0 on success, 1 if any file failed.
+     */
+    static int run(CompilerOptions options, PrintStream out, PrintStream err) {
+        List<File> files = collectFiles(options, out, err);
+        int failures;
+        if (files.isEmpty()) {
+            failures = 0;
+        } else if (options.isWholeProgram() && !options.isDecode()) {
+            failures = Linker.run(files, options, out, err);
+        } else {
+            failures = compileAll(files, options, out, err);
+        }
+        return failures > 0 ? 1 : 0;
+    }
+
+    /**
+     * Collects the .jack files of all input roots, in a stable order.
+     * Invalid roots are reported and skipped.
+     *
+     * @param options the parsed command line options.
+     * @param out     the stream for progress output.
+     * @param err     the stream for error output.
+     * @return the .jack files to compile, without duplicates.
+     */
+    private static List<File> collectFiles(CompilerOptions options, PrintStream out, PrintStream err) {
+        Set<File> files = new LinkedHashSet<>();
+
+        for (String inputPath : options.getInputs()) {
+            File inputFile = new File(inputPath);
             if (inputFile.isDirectory()) {
-                analyzeFolder(inputFile); // Process all .jack files in the folder.
-            } else if (inputFile.isFile() && inputPath.endsWith(".jack")) {
-                analyzeFile(inputFile); // Process the single .jack file.
+                files.addAll(listFolder(inputFile, options, out, err)); // All input files in the folder.
+            } else if (inputFile.isFile() && inputPath.endsWith(options.getInputExtension())) {
+                files.add(inputFile.getAbsoluteFile()); // The single input file.
             } else {
-                System.out.println("Invalid input. Provide a .jack file or a folder containing .jack files.");
+                out.println("Invalid input. Provide a " + options.getInputExtension()
+                        + " file or a folder containing " + options.getInputExtension() + " files.");
             }
-        } catch (Exception e) {
-            System.err.println("An error occurred while processing: " + inputPath);
-            e.printStackTrace();
         }
+        return new ArrayList<>(files);
     }
 
     /**
-     * Analyzes all .jack files in the specified folder.
+     * Lists the input files in the specified folder, sorted by path.
      *
-     * @param folder the folder containing .jack files.
+     * @param folder  the folder containing input files.
+     * @param options the compiler options, giving the input extension and
+     *                whether sub folders are searched too.
+     * @param out     the stream for progress output.
+     * @param err     the stream for error output.
+     * @return the input files found.
      */
-    private static void analyzeFolder(File folder) {
-        try {
-            // Filter to get only .jack files in the folder.
-            File[] files = folder.listFiles((dir, name) -> name.endsWith(".jack"));
-            if (files == null || files.length == 0) {
-                System.out.println("No .jack files found in the folder: " + folder.getAbsolutePath());
-                return;
-            }
+    private static List<File> listFolder(File folder, CompilerOptions options, PrintStream out, PrintStream err) {
+        String extension = options.getInputExtension();
+        List<File> files = new ArrayList<>();
+        try (Stream<Path> paths = options.isRecursive() ? Files.walk(folder.toPath()) : Files.list(folder.toPath())) {
+            files = paths.filter(path -> path.toString().endsWith(extension) && Files.isRegularFile(path))
+                    .map(path -> path.toAbsolutePath().normalize().toFile())
+                    .sorted()
+                    .collect(Collectors.toList());
+        } catch (IOException e) {
+            err.println("An error occurred while processing the folder: " + folder.getAbsolutePath());
+            e.printStackTrace(err);
+        }
+
+        if (files.isEmpty()) {
+            out.println("No " + extension + " files found in the folder: " + folder.getAbsolutePath());
+        }
+        return files;
+    }
+
+    /**
+     * Compiles the given files, using as many worker threads as the options
+     * request. Results are printed in the order of the files, whatever order
+     * the workers finish in, and a failing file does not stop the others.
+     *
+     * @param files   the .jack files to compile.
+     * @param options the compiler options.
+     * @param out     the stream for progress output.
+     * @param err     the stream for error output.
+     * @return the number of files that failed to compile.
+     */
+    static int compileAll(List<File> files, CompilerOptions options, PrintStream out, PrintStream err) {
+        int workers = Math.min(options.getJobs(), files.size());
+        long start = System.nanoTime();
+        long busyNanos = 0;
+        int failures = 0;
+        BuildCache cache = openCache(options, err);
 
-            // Process each .jack file in the folder.
+        if (workers <= 1) {
             for (File file : files) {
-                analyzeFile(file);
+                CompileResult result = processFile(file, options, cache);
+                report(result, out, err);
+                busyNanos += result.getElapsedNanos();
+                if (!result.succeeded()) {
+                    failures++;
+                }
+            }
+        } else {
+            ExecutorService executor = Executors.newFixedThreadPool(workers);
+            try {
+                List<Future<CompileResult>> futures = new ArrayList<>();
+                for (File file : files) {
+                    futures.add(executor.submit(() -> processFile(file, options, cache)));
+                }
+
+                for (int i = 0; i < files.size(); i++) {
+                    CompileResult result = await(futures.get(i), files.get(i));
+                    report(result, out, err);
+                    busyNanos += result.getElapsedNanos();
+                    if (!result.succeeded()) {
+                        failures++;
+                    }
+                }
+            } finally {
+                executor.shutdown();
+            }
+        }
+
+        long wallNanos = System.nanoTime() - start;
+        out.printf("%s %d file(s), %d failed, in %d ms using %d worker(s) (speedup %.2fx)%n",
+                options.isDecode() ? "Decoded" : "Compiled", files.size(), failures, wallNanos / 1_000_000,
+                Math.max(workers, 1), wallNanos == 0 ? 1.0 : (double) busyNanos / wallNanos);
+
+        if (cache != null) {
+            try {
+                cache.evict();
+                out.println(cache.statistics());
+            } catch (IOException e) {
+                err.println("An error occurred while maintaining the build cache: " + e.getMessage());
             }
+        }
+        return failures;
+    }
+
+    /**
+     * Opens the build cache if the options ask for one. A cache that cannot
+     * be opened is reported, and the build goes on without it.
+     */
+    private static BuildCache openCache(CompilerOptions options, PrintStream err) {
+        if (options.getCacheDirectory() == null || options.isDecode()) {
+            return null;
+        }
+        try {
+            return new BuildCache(Paths.get(options.getCacheDirectory()), options.getCacheLimit());
+        } catch (IOException e) {
+            err.println("Build cache disabled, cannot open " + options.getCacheDirectory() + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Waits for a worker to finish a file, turning unexpected failures of the
+     * worker itself into a failed result.
+     */
+    private static CompileResult await(Future<CompileResult> future, File file) {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            return new CompileResult(file, "", e.getCause(), 0);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new CompileResult(file, "", e, 0);
+        }
+    }
+
+    /**
+     * Prints the output and error, if any, of a single compilation.
+     */
+    private static void report(CompileResult result, PrintStream out, PrintStream err) {
+        out.print(result.getLog());
+        if (!result.succeeded()) {
+            err.println("Error occurred while processing file: " + result.getSource().getAbsolutePath());
+            result.getError().printStackTrace(err);
+        }
+    }
+
+    /**
+     * Compiles or decodes a single input file, depending on the options.
+     */
+    private static CompileResult processFile(File file, CompilerOptions options, BuildCache cache) {
+        if (options.isDecode()) {
+            return decodeFile(file);
+        }
+        return cache != null ? analyzeFileCached(file, options, cache) : analyzeFile(file, options);
+    }
+
+    /**
+     * Decodes a single binary VM file back to .vm text.
+     *
+     * @param file the .vmb file to decode.
+     * @return the result of the decoding.
+     */
+    static CompileResult decodeFile(File file) {
+        String inputFileName = file.getAbsolutePath();
+        String outputFileName = inputFileName.substring(0, inputFileName.length() - ".vmb".length()) + ".vm";
+        long start = System.nanoTime();
+
+        try {
+            VMDecoder.decodeFile(inputFileName, outputFileName);
         } catch (Exception e) {
-            System.err.println("An error occurred while processing the folder: " + folder.getAbsolutePath());
-            e.printStackTrace();
+            return new CompileResult(file, "", e, System.nanoTime() - start);
         }
+        return new CompileResult(file, "Decoded " + inputFileName + " to " + outputFileName
+                + System.lineSeparator(), null, System.nanoTime() - start);
     }
 
     /**
-     * Analyzes a single .jack file, generating token and parse XML outputs.
+     * Analyzes a single .jack file, generating its VM output.
+     * Progress messages are collected rather than printed, so that this method
+     * can run on a worker thread.
      *
-     * @param file the .jack file to analyze.
+     * @param file    the .jack file to analyze.
+     * @param options the compiler options.
+     * @return the result of the compilation.
      */
-    private static void analyzeFile(File file) {
+    static CompileResult analyzeFile(File file, CompilerOptions options) {
         String inputFileName = file.getAbsolutePath();
-        String parseFileName = inputFileName.replace(".jack", ".vm");
+        String parseFileName = inputFileName.replace(".jack", options.getOutputExtension());
+        StringWriter buffer = new StringWriter();
+        PrintWriter log = new PrintWriter(buffer);
+        long start = System.nanoTime();
 
         try {
-            System.out.println("Analyzing file: " + inputFileName);
+            log.println("Analyzing file: " + inputFileName);
 
-            System.out.println("Creating CompilationEngine...");
-            CompilationEngine engine = new CompilationEngine(inputFileName, parseFileName);
+            log.println("Creating CompilationEngine...");
+            CompilationEngine engine = new CompilationEngine(inputFileName, parseFileName, options);
 
-            System.out.println("Starting compilation...");
+            log.println("Starting compilation...");
             engine.compileClass();
 
-            System.out.println("Closing engine...");
+            log.println("Closing engine...");
             engine.close();
+            for (String line : engine.getOptimizationReport()) {
+                log.println(line);
+            }
 
             File outputFile = new File(parseFileName);
-            System.out.println("Output file size: " + outputFile.length() + " bytes");
+            log.println("Output file size: " + outputFile.length() + " bytes");
 
-            System.out.println("Output written to: " + parseFileName);
-        } catch (Exception e) {
-            System.err.println("Error occurred while processing file: " + inputFileName);
-            e.printStackTrace();
+            log.println("Output written to: " + parseFileName);
+        } catch (Exception | StackOverflowError e) {
+            log.flush();
+            return new CompileResult(file, buffer.toString(), e, System.nanoTime() - start);
+        }
+
+        log.flush();
+        return new CompileResult(file, buffer.toString(), null, System.nanoTime() - start);
+    }
+
+    /**
+     * Analyzes a single .jack file through the build cache. On a hit the
+     * cached output is used without compiling; on a miss the file is compiled
+     * and its output stored. Either way the output file is only rewritten if
+     * its contents change.
+     *
+     * @param file    the .jack file to analyze.
+     * @param options the compiler options.
+     * @param cache   the build cache.
+     * @return the result of the compilation.
+     */
+    static CompileResult analyzeFileCached(File file, CompilerOptions options, BuildCache cache) {
+        String inputFileName = file.getAbsolutePath();
+        String parseFileName = inputFileName.replace(".jack", options.getOutputExtension());
+        StringWriter buffer = new StringWriter();
+        PrintWriter log = new PrintWriter(buffer);
+        long start = System.nanoTime();
+
+        try {
+            log.println("Analyzing file: " + inputFileName);
+            String key = BuildCache.key(Files.readAllBytes(file.toPath()), options.fingerprint());
+            byte[] output = cache.lookup(key);
+
+            if (output != null) {
+                log.println("Cache hit, skipping compilation");
+            } else {
+                log.println("Cache miss, compiling...");
+                Path tempFile = Files.createTempFile(file.getAbsoluteFile().getParentFile().toPath(),
+                        file.getName(), ".tmp");
+                try {
+                    CompilationEngine engine = new CompilationEngine(inputFileName, tempFile.toString(), options);
+                    engine.compileClass();
+                    engine.close();
+                    for (String line : engine.getOptimizationReport()) {
+                        log.println(line);
+                    }
+                    output = Files.readAllBytes(tempFile);
+                } finally {
+                    Files.deleteIfExists(tempFile);
+                }
+                cache.store(key, output);
+            }
+
+            log.println("Output file size: " + output.length + " bytes");
+            if (writeIfChanged(Paths.get(parseFileName), output)) {
+                log.println("Output written to: " + parseFileName);
+            } else {
+                log.println("Output unchanged: " + parseFileName);
+            }
+        } catch (Exception | StackOverflowError e) {
+            log.flush();
+            return new CompileResult(file, buffer.toString(), e, System.nanoTime() - start);
+        }
+
+        log.flush();
+        return new CompileResult(file, buffer.toString(), null, System.nanoTime() - start);
+    }
+
+    /**
+     * Writes a file unless it already has exactly the given contents.
+     *
+     * @return true if the file was written.
+     */
+    private static boolean writeIfChanged(Path path, byte[] contents) throws IOException {
+        if (Files.isRegularFile(path) && Files.size(path) == contents.length
+                && Arrays.equals(Files.readAllBytes(path), contents)) {
+            return false;
         }
+        Files.write(path, contents);
+        return true;
     }
 }
@@ -0,0 +1,5 @@
+// Enum to represent the format of the compiler output.
+public enum OutputFormat {
+    TEXT, // Standard .vm text.
+    BINARY // Compact .vmb bytecode, see BinaryVMWriter.
+}
@@ -0,0 +1,72 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Rewrites short windows of VM instructions with a set of PeepholeRules.
+ * Each pass walks the code once, trying the rules in order at every
+ * instruction and copying instructions no rule matches; passes repeat until
+ * the code stops changing, since one rewrite often enables another.
+ */
+class PeepholeOptimizer {
+
+    // Upper bound on passes over one subroutine, as a guard against rules
+    // that keep rewriting each other's output.
+    private static final int MAX_PASSES = 16;
+
+    private final List<PeepholeRule> rules;
+
+    public PeepholeOptimizer(List<PeepholeRule> rules) {
+        this.rules = new ArrayList<>(rules);
+    }
+
+    /**
+     * Returns a peephole optimizer with the standard rules, except those
+     * whose names are listed as disabled.
+     *
+     * @param disabled the names of the rules to leave out
+     * @return the optimizer
+     */
+    public static PeepholeOptimizer withDefaults(List<String> disabled) {
+        List<PeepholeRule> rules = new ArrayList<>();
+        for (PeepholeRule rule : PeepholeRules.defaults()) {
+            if (!disabled.contains(rule.name())) {
+                rules.add(rule);
+            }
+        }
+        return new PeepholeOptimizer(rules);
+    }
+
+    /**
+     * Optimizes the code of one subroutine.
+     *
+     * @param code the code to optimize; it is not modified
+     * @return the optimized code, or the same code if no rule applied
+     */
+    public VMCode optimize(VMCode code) {
+        for (int pass = 0; pass < MAX_PASSES; pass++) {
+            VMCode out = code.emptyCopy();
+            boolean changed = false;
+            int index = 0;
+            while (index < code.size()) {
+                int replaced = 0;
+                for (PeepholeRule rule : rules) {
+                    replaced = rule.apply(code, index, out);
+                    if (replaced > 0) {
+                        break;
+                    }
+                }
+                if (replaced > 0) {
+                    index += replaced;
+                    changed = true;
+                } else {
+                    out.copy(code, index++);
+                }
+            }
+            if (!changed) {
+                return code;
+            }
+            code = out;
+        }
+        return code;
+    }
+}
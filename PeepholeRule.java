@@ -0,0 +1,22 @@
+/**
+ * A rewrite of a short window of VM instructions into an equivalent, shorter
+ * sequence. Rules are tried at every instruction by the PeepholeOptimizer.
+ */
+interface PeepholeRule {
+
+    /**
+     * Returns the name of the rule, used to enable or disable it.
+     */
+    String name();
+
+    /**
+     * Tries the rule on the instructions starting at an index. On a match the
+     * replacement is appended to the output code.
+     *
+     * @param code  the code being optimized
+     * @param index the index of the first instruction of the window
+     * @param out   the code receiving the replacement
+     * @return the number of instructions replaced, or 0 if the rule does not match
+     */
+    int apply(VMCode code, int index, VMCode out);
+}
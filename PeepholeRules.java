@@ -0,0 +1,365 @@
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The standard peephole rules. Each rule preserves the exact 16-bit behaviour
+ * of the code it replaces, including its effect on the stack; the only state
+ * a rule may drop is temp 0, which the engine uses as a scratch register that
+ * is always written before it is read.
+ */
+class PeepholeRules {
+
+    private PeepholeRules() {
+    }
+
+    /**
+     * Returns all standard rules, in the order they are tried.
+     */
+    public static List<PeepholeRule> defaults() {
+        return Arrays.asList(
+                new DoubleNegation(),
+                new ConstantCondition(),
+                new NeutralOperand(),
+                new NegatedOperand(),
+                new InvertedComparison(),
+                new RedundantStore(),
+                new DiscardedValue(),
+                new ArrayStore(),
+                new JumpThreading(),
+                new JumpToNext(),
+                new UnreachableCode(),
+                new UnusedLabel());
+    }
+
+    /**
+     * neg; neg and not; not cancel out.
+     */
+    static class DoubleNegation implements PeepholeRule {
+        @Override
+        public String name() {
+            return "double-negation";
+        }
+
+        @Override
+        public int apply(VMCode code, int index, VMCode out) {
+            if ((code.isArithmetic(index, Command.NEG) && code.isArithmetic(index + 1, Command.NEG))
+                    || (code.isArithmetic(index, Command.NOT) && code.isArithmetic(index + 1, Command.NOT))) {
+                return 2;
+            }
+            return 0;
+        }
+    }
+
+    /**
+     * Folds the constants true and false into the instructions using them:
+     * push constant 1; neg; not is false, and a branch on a constant is either
+     * always or never taken.
+     */
+    static class ConstantCondition implements PeepholeRule {
+        @Override
+        public String name() {
+            return "constant-condition";
+        }
+
+        @Override
+        public int apply(VMCode code, int index, VMCode out) {
+            if (code.isConstant(index, 1) && code.isArithmetic(index + 1, Command.NEG)
+                    && code.isArithmetic(index + 2, Command.NOT)) {
+                out.addPush(Segment.CONST, 0); // not true
+                return 3;
+            }
+            if (code.isConstant(index, 0) && code.isArithmetic(index + 1, Command.NOT)
+                    && code.is(index + 2, VMCode.IF_GOTO)) {
+                out.addGoto(code.labelName(code.symbol(index + 2))); // if true
+                return 3;
+            }
+            if (code.isConstant(index, 1) && code.isArithmetic(index + 1, Command.NEG)
+                    && code.is(index + 2, VMCode.IF_GOTO)) {
+                out.addGoto(code.labelName(code.symbol(index + 2))); // if true
+                return 3;
+            }
+            if (code.is(index, VMCode.PUSH) && code.segment(index) == Segment.CONST
+                    && code.is(index + 1, VMCode.IF_GOTO)) {
+                if (code.operand(index) != 0) {
+                    out.addGoto(code.labelName(code.symbol(index + 1)));
+                }
+                return 2;
+            }
+            return 0;
+        }
+    }
+
+    /**
+     * Adding, subtracting or or-ing 0 leaves a value unchanged.
+     */
+    static class NeutralOperand implements PeepholeRule {
+        @Override
+        public String name() {
+            return "neutral-operand";
+        }
+
+        @Override
+        public int apply(VMCode code, int index, VMCode out) {
+            if (code.isConstant(index, 0) && (code.isArithmetic(index + 1, Command.ADD)
+                    || code.isArithmetic(index + 1, Command.SUB) || code.isArithmetic(index + 1, Command.OR))) {
+                return 2;
+            }
+            return 0;
+        }
+    }
+
+    /**
+     * x + -k is x - k, and x - -k is x + k.
+     */
+    static class NegatedOperand implements PeepholeRule {
+        @Override
+        public String name() {
+            return "negated-operand";
+        }
+
+        @Override
+        public int apply(VMCode code, int index, VMCode out) {
+            if (code.is(index, VMCode.PUSH) && code.segment(index) == Segment.CONST
+                    && code.isArithmetic(index + 1, Command.NEG)) {
+                if (code.isArithmetic(index + 2, Command.ADD)) {
+                    out.addPush(Segment.CONST, code.operand(index));
+                    out.addArithmetic(Command.SUB);
+                    return 3;
+                }
+                if (code.isArithmetic(index + 2, Command.SUB)) {
+                    out.addPush(Segment.CONST, code.operand(index));
+                    out.addArithmetic(Command.ADD);
+                    return 3;
+                }
+            }
+            return 0;
+        }
+    }
+
+    /**
+     * A negated comparison with a constant is the opposite comparison with the
+     * neighbouring constant: not (x &lt; k) is x &gt; k - 1, and not (x &gt; k)
+     * is x &lt; k + 1, as long as the new constant is still a valid constant.
+     */
+    static class InvertedComparison implements PeepholeRule {
+        @Override
+        public String name() {
+            return "inverted-comparison";
+        }
+
+        @Override
+        public int apply(VMCode code, int index, VMCode out) {
+            if (!code.is(index, VMCode.PUSH) || code.segment(index) != Segment.CONST
+                    || !code.isArithmetic(index + 2, Command.NOT)) {
+                return 0;
+            }
+            int constant = code.operand(index);
+            if (code.isArithmetic(index + 1, Command.LT) && constant >= 1) {
+                out.addPush(Segment.CONST, constant - 1);
+                out.addArithmetic(Command.GT);
+                return 3;
+            }
+            if (code.isArithmetic(index + 1, Command.GT) && constant < Short.MAX_VALUE) {
+                out.addPush(Segment.CONST, constant + 1);
+                out.addArithmetic(Command.LT);
+                return 3;
+            }
+            return 0;
+        }
+    }
+
+    /**
+     * push s i; pop s i stores a value back where it came from.
+     */
+    static class RedundantStore implements PeepholeRule {
+        @Override
+        public String name() {
+            return "redundant-store";
+        }
+
+        @Override
+        public int apply(VMCode code, int index, VMCode out) {
+            if (code.is(index, VMCode.PUSH) && code.is(index + 1, VMCode.POP)
+                    && code.segment(index) == code.segment(index + 1)
+                    && code.operand(index) == code.operand(index + 1)) {
+                return 2;
+            }
+            return 0;
+        }
+    }
+
+    /**
+     * A pushed value popped into temp 0 right away, such as the return value
+     * of an inlined void call, is not used unless temp 0 is read before it
+     * is written again. Temp 0 never holds a value across a label, jump or
+     * call.
+     */
+    static class DiscardedValue implements PeepholeRule {
+        @Override
+        public String name() {
+            return "discarded-value";
+        }
+
+        @Override
+        public int apply(VMCode code, int index, VMCode out) {
+            if (!code.is(index, VMCode.PUSH) || !isTemp0(code, index + 1, VMCode.POP)) {
+                return 0;
+            }
+            for (int next = index + 2; code.is(next, VMCode.PUSH) || code.is(next, VMCode.POP)
+                    || code.is(next, VMCode.ARITHMETIC); next++) {
+                if (isTemp0(code, next, VMCode.PUSH)) {
+                    return 0;
+                }
+                if (isTemp0(code, next, VMCode.POP)) {
+                    break;
+                }
+            }
+            return 2;
+        }
+
+        private static boolean isTemp0(VMCode code, int index, byte opcode) {
+            return code.is(index, opcode) && code.segment(index) == Segment.TEMP && code.operand(index) == 0;
+        }
+    }
+
+    /**
+     * Storing a simple value into an array element needs no round trip
+     * through temp 0: the address can be popped into pointer 1 before the
+     * value is pushed, as long as pushing the value does not read that or
+     * pointer.
+     */
+    static class ArrayStore implements PeepholeRule {
+        @Override
+        public String name() {
+            return "array-store";
+        }
+
+        @Override
+        public int apply(VMCode code, int index, VMCode out) {
+            if (!code.is(index, VMCode.PUSH)) {
+                return 0;
+            }
+            Segment segment = code.segment(index);
+            if (segment == Segment.THAT || segment == Segment.POINTER
+                    || (segment == Segment.TEMP && code.operand(index) == 0)) {
+                return 0;
+            }
+            if (isPop(code, index + 1, Segment.TEMP, 0) && isPop(code, index + 2, Segment.POINTER, 1)
+                    && code.is(index + 3, VMCode.PUSH) && code.segment(index + 3) == Segment.TEMP
+                    && code.operand(index + 3) == 0 && isPop(code, index + 4, Segment.THAT, 0)) {
+                out.addPop(Segment.POINTER, 1);
+                out.addPush(segment, code.operand(index));
+                out.addPop(Segment.THAT, 0);
+                return 5;
+            }
+            return 0;
+        }
+
+        private static boolean isPop(VMCode code, int index, Segment segment, int value) {
+            return code.is(index, VMCode.POP) && code.segment(index) == segment && code.operand(index) == value;
+        }
+    }
+
+    /**
+     * A jump to a goto can jump straight to where that goto leads.
+     */
+    static class JumpThreading implements PeepholeRule {
+        @Override
+        public String name() {
+            return "jump-threading";
+        }
+
+        @Override
+        public int apply(VMCode code, int index, VMCode out) {
+            if (!code.is(index, VMCode.GOTO) && !code.is(index, VMCode.IF_GOTO)) {
+                return 0;
+            }
+            int label = code.symbol(index);
+            int target = code.labelTarget(label);
+            if (target < 0) {
+                return 0;
+            }
+            while (code.is(target, VMCode.LABEL)) {
+                target++;
+            }
+            if (!code.is(target, VMCode.GOTO) || code.symbol(target) == label) {
+                return 0;
+            }
+            String next = code.labelName(code.symbol(target));
+            if (code.is(index, VMCode.GOTO)) {
+                out.addGoto(next);
+            } else {
+                out.addIf(next);
+            }
+            return 1;
+        }
+    }
+
+    /**
+     * A goto to a label among the labels right after it does nothing.
+     */
+    static class JumpToNext implements PeepholeRule {
+        @Override
+        public String name() {
+            return "jump-to-next";
+        }
+
+        @Override
+        public int apply(VMCode code, int index, VMCode out) {
+            if (!code.is(index, VMCode.GOTO)) {
+                return 0;
+            }
+            for (int next = index + 1; code.is(next, VMCode.LABEL); next++) {
+                if (code.symbol(next) == code.symbol(index)) {
+                    return 1;
+                }
+            }
+            return 0;
+        }
+    }
+
+    /**
+     * Instructions after a goto or return are never executed until the next
+     * label.
+     */
+    static class UnreachableCode implements PeepholeRule {
+        @Override
+        public String name() {
+            return "unreachable-code";
+        }
+
+        @Override
+        public int apply(VMCode code, int index, VMCode out) {
+            if (!code.is(index, VMCode.GOTO) && !code.is(index, VMCode.RETURN)) {
+                return 0;
+            }
+            int end = index + 1;
+            while (end < code.size() && code.opcode(end) != VMCode.LABEL) {
+                end++;
+            }
+            if (end == index + 1) {
+                return 0;
+            }
+            out.copy(code, index);
+            return end - index;
+        }
+    }
+
+    /**
+     * A label nothing jumps to can go.
+     */
+    static class UnusedLabel implements PeepholeRule {
+        @Override
+        public String name() {
+            return "unused-label";
+        }
+
+        @Override
+        public int apply(VMCode code, int index, VMCode out) {
+            if (code.is(index, VMCode.LABEL) && code.labelUses(code.symbol(index)) == 0) {
+                return 1;
+            }
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,217 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The complete contents of a source file, held in memory for index based
+ * scanning.
+ * Small files are read with a single bulk read, larger files are memory mapped.
+ */
+class SourceBuffer {
+
+    // Files at least this large are mapped instead of copied to the heap.
+    private static final long MAP_THRESHOLD = 64 * 1024;
+
+    // Constants for scanning eight bytes at a time within a long (SWAR).
+    private static final long ONES = 0x0101010101010101L;
+    private static final long LOW_BITS = 0x7F7F7F7F7F7F7F7FL;
+    private static final long HIGH_BITS = 0x8080808080808080L;
+
+    private final ByteBuffer bytes;
+    private final int length;
+
+    private SourceBuffer(ByteBuffer bytes) {
+        this.bytes = bytes.order(ByteOrder.LITTLE_ENDIAN); // Byte i of a word is in bits 8i to 8i+7.
+        this.length = bytes.limit();
+    }
+
+    /**
+     * Loads a whole source file.
+     *
+     * @param path the file to load
+     * @return the buffer holding the file contents
+     * @throws IOException if the file cannot be read
+     */
+    public static SourceBuffer open(String path) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Source file too large: " + path);
+            }
+            if (size >= MAP_THRESHOLD) {
+                return new SourceBuffer(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            while (buffer.hasRemaining() && channel.read(buffer) != -1) {
+                // Keep reading until the whole file is in the buffer.
+            }
+            buffer.flip();
+            return new SourceBuffer(buffer);
+        }
+    }
+
+    /**
+     * Wraps source bytes that are already in memory. The remaining bytes of
+     * the buffer are used; its position and byte order are left untouched.
+     *
+     * @param source the source bytes
+     * @return the buffer over the source bytes
+     */
+    public static SourceBuffer wrap(ByteBuffer source) {
+        return new SourceBuffer(source.slice());
+    }
+
+    /**
+     * Encodes source text with the platform charset, the charset the
+     * scanner decodes with.
+     *
+     * @param source the source text
+     * @return the buffer holding the encoded source
+     */
+    public static SourceBuffer of(CharSequence source) {
+        return new SourceBuffer(Charset.defaultCharset().encode(CharBuffer.wrap(source)));
+    }
+
+    /**
+     * Returns the number of bytes in the source.
+     */
+    public int length() {
+        return length;
+    }
+
+    /**
+     * Returns the byte at the given index as an unsigned character code.
+     */
+    public char charAt(int index) {
+        return (char) (bytes.get(index) & 0xFF);
+    }
+
+    /**
+     * Decodes part of the source to a String, using the platform charset like
+     * the reader based input does.
+     *
+     * @param start the index of the first byte
+     * @param count the number of bytes
+     * @return the decoded text
+     */
+    public String text(int start, int count) {
+        byte[] chunk = new byte[count];
+        bytes.get(start, chunk, 0, count);
+        return new String(chunk, Charset.defaultCharset());
+    }
+
+    /**
+     * Returns the index of the first byte at or after the given index that is
+     * not whitespace, or the length of the source if there is none. Scans
+     * eight bytes per step and finishes the last few bytes one at a time.
+     */
+    public int skipWhitespace(int from) {
+        int index = from;
+        while (index + 8 <= length) {
+            long word = bytes.getLong(index);
+            long other = ~whitespaceBytes(word) & HIGH_BITS;
+            if (other != 0) {
+                return index + (Long.numberOfTrailingZeros(other) >>> 3);
+            }
+            index += 8;
+        }
+        while (index < length && Character.isWhitespace(charAt(index))) {
+            index++;
+        }
+        return index;
+    }
+
+    /**
+     * Returns the index of the first line feed or carriage return at or after
+     * the given index, or the length of the source if there is none.
+     */
+    public int indexOfLineEnd(int from) {
+        int index = from;
+        while (index + 8 <= length) {
+            long word = bytes.getLong(index);
+            long found = equalBytes(word, '\n') | equalBytes(word, '\r');
+            if (found != 0) {
+                return index + (Long.numberOfTrailingZeros(found) >>> 3);
+            }
+            index += 8;
+        }
+        while (index < length && charAt(index) != '\n' && charAt(index) != '\r') {
+            index++;
+        }
+        return index;
+    }
+
+    /**
+     * Returns the index of the first occurrence of a character at or after
+     * the given index, or the length of the source if there is none.
+     */
+    public int indexOf(char ch, int from) {
+        int index = from;
+        while (index + 8 <= length) {
+            long found = equalBytes(bytes.getLong(index), ch);
+            if (found != 0) {
+                return index + (Long.numberOfTrailingZeros(found) >>> 3);
+            }
+            index += 8;
+        }
+        while (index < length && charAt(index) != ch) {
+            index++;
+        }
+        return index;
+    }
+
+    /**
+     * Counts the line feeds between two indexes.
+     *
+     * @param from the first index, inclusive
+     * @param to   the last index, exclusive
+     * @return the number of line feeds in the range
+     */
+    public int countLines(int from, int to) {
+        int count = 0;
+        int index = from;
+        while (index + 8 <= to) {
+            count += Long.bitCount(equalBytes(bytes.getLong(index), '\n'));
+            index += 8;
+        }
+        while (index < to) {
+            if (charAt(index++) == '\n') {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Sets the high bit of every byte of the word that equals the given value.
+     * Exact for every byte: no carries cross byte boundaries.
+     */
+    private static long equalBytes(long word, int value) {
+        long x = word ^ (ONES * value);
+        return ~(((x & LOW_BITS) + LOW_BITS) | x | LOW_BITS);
+    }
+
+    /**
+     * Sets the high bit of every byte of the word that is at least the given
+     * value, which must be between 1 and 128.
+     */
+    private static long atLeast(long word, int value) {
+        return (((word & LOW_BITS) + ONES * (128 - value)) | word) & HIGH_BITS;
+    }
+
+    /**
+     * Sets the high bit of every byte of the word that Character.isWhitespace
+     * accepts: tab to carriage return, the four separators and space.
+     */
+    private static long whitespaceBytes(long word) {
+        long controls = atLeast(word, 0x09) & ~atLeast(word, 0x0E);
+        long separators = atLeast(word, 0x1C) & ~atLeast(word, 0x20);
+        return controls | separators | equalBytes(word, ' ');
+    }
+}
@@ -0,0 +1,107 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+
+/**
+ * Compiles Jack source from standard input to standard output, so that the
+ * compiler can sit in a shell pipeline between a code generator and the VM
+ * translator without files in between. Standard output carries nothing but VM
+ * code; all diagnostics go to standard error.
+ *
+ * A plain stream is a single class, compiled as it is read, and its VM code is
+ * written out in chunks as it is produced. A framed stream is a sequence of
+ * classes, each a 4-byte big-endian length followed by that many bytes of
+ * source; the output is the same sequence of frames holding the VM code of
+ * each class, with an empty frame for a class that fails to compile. Only one
+ * class is held in memory at a time.
+ */
+class StreamMode {
+
+    private StreamMode() {
+    }
+
+    /**
+     * Compiles the standard input stream.
+     *
+     * @param options the compiler options
+     * @param in      the source stream
+     * @param out     the stream receiving the VM code
+     * @param err     the stream for diagnostics
+     * @return the exit code: 0 on success, 1 if any class failed
+     */
+    public static int run(CompilerOptions options, InputStream in, OutputStream out, PrintStream err) {
+        try {
+            return options.isFramed() ? compileFrames(options, in, out, err) : compileSingle(options, in, out);
+        } catch (Exception | StackOverflowError e) {
+            err.println("Error occurred while compiling standard input");
+            e.printStackTrace(err);
+            return 1;
+        }
+    }
+
+    private static int compileSingle(CompilerOptions options, InputStream in, OutputStream out) throws IOException {
+        // Write out in chunks, so that memory use does not grow with the output.
+        FlushPolicy flushPolicy = options.getFlushPolicy() == FlushPolicy.ON_CLOSE
+                ? FlushPolicy.BUFFERED : options.getFlushPolicy();
+        VMWriter writer = options.getOutputFormat() == OutputFormat.BINARY
+                ? new BinaryVMWriter(Channels.newChannel(out), flushPolicy)
+                : new VMWriter(Channels.newChannel(out), flushPolicy);
+
+        JackTokenizer tokenizer;
+        if (options.isMemoryMapped()) {
+            tokenizer = new JackTokenizer(SourceBuffer.wrap(ByteBuffer.wrap(in.readAllBytes())), options.isSwar());
+        } else {
+            tokenizer = new JackTokenizer(new InputStreamReader(in));
+        }
+
+        CompilationEngine engine = new CompilationEngine(tokenizer, writer, options);
+        try {
+            engine.compileClass();
+        } finally {
+            engine.close();
+        }
+        return 0;
+    }
+
+    private static int compileFrames(CompilerOptions options, InputStream in, OutputStream out, PrintStream err)
+            throws IOException {
+        DataInputStream frames = new DataInputStream(in);
+        DataOutputStream output = new DataOutputStream(out);
+        int failures = 0;
+
+        for (int index = 0; ; index++) {
+            int length;
+            try {
+                length = frames.readInt();
+            } catch (EOFException e) {
+                break; // No more frames.
+            }
+            if (length < 0) {
+                throw new IOException("Invalid frame length " + length + " in frame " + index);
+            }
+            byte[] source = new byte[length];
+            frames.readFully(source);
+
+            byte[] code;
+            try {
+                code = InMemoryCompiler.compile(ByteBuffer.wrap(source), options);
+            } catch (Exception | StackOverflowError e) {
+                err.println("Error occurred while compiling frame " + index);
+                e.printStackTrace(err);
+                code = new byte[0];
+                failures++;
+            }
+            output.writeInt(code.length);
+            output.write(code);
+            output.flush();
+        }
+        return failures > 0 ? 1 : 0;
+    }
+}
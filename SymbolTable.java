@@ -1,40 +1,49 @@
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 /**
  * The Symbol Table class manages the scope and properties of variables in a
  * program.
  * It keeps track of variable types, kinds, and indices for generating VM code.
+ *
+ * Class-level variables (static and field) and subroutine-level variables
+ * (argument and local) live in two separate scopes. A name is looked up in
+ * the subroutine scope first, so a local may shadow a field. Resetting for a
+ * new subroutine only empties the subroutine scope, in constant time.
+ * Names and types are identifiers interned in an IdentifierPool, and each
+ * scope is an array indexed by identifier ID; the String methods intern or
+ * look up the name and use the same arrays.
  */
 class SymbolTable {
 
+    private static final KindType[] KINDS = KindType.values();
+
     /**
-     * Maps for storing variable information:
-     * typeMap - Maps variable names to their data types
-     * kindMap - Maps variable names to their kind (static/field/argument/local)
-     * indexMap - Maps variable names to their running index in their segment
-     * kindCount - Stores the count of variables of each kind
+     * The two scopes:
+     * classScope - static and field variables, kept for the whole class
+     * subroutineScope - argument and local variables of the current subroutine
+     * kindCount - Stores the count of variables of each kind, by ordinal
      */
-    private Map<String, String> typeMap;
-    private Map<String, KindType> kindMap;
-    private Map<String, Integer> indexMap;
-    private Map<KindType, Integer> kindCount;
+    private final IdentifierPool identifiers;
+    private final Scope classScope;
+    private final Scope subroutineScope;
+    private final int[] kindCount;
 
     /**
-     * Initializes a new empty symbol table.
-     * Sets up the maps and initializes counters for each kind of variable to 0.
+     * Initializes a new empty symbol table with its own identifier pool.
      */
     public SymbolTable() {
-        typeMap = new HashMap<>();
-        kindMap = new HashMap<>();
-        indexMap = new HashMap<>();
-        kindCount = new HashMap<>();
+        this(new IdentifierPool());
+    }
 
-        // Initialize variable counters to 0 for each kind
-        kindCount.put(KindType.STATIC, 0);
-        kindCount.put(KindType.FIELD, 0);
-        kindCount.put(KindType.ARG, 0);
-        kindCount.put(KindType.VAR, 0);
+    /**
+     * Initializes a new empty symbol table over an identifier pool.
+     * Sets up both scopes and initializes counters for each kind of variable to 0.
+     */
+    public SymbolTable(IdentifierPool identifiers) {
+        this.identifiers = identifiers;
+        classScope = new Scope();
+        subroutineScope = new Scope();
+        kindCount = new int[KINDS.length];
     }
 
     /**
@@ -43,109 +52,215 @@ class SymbolTable {
      * subroutine-level ones.
      */
     public void reset() {
-        // Save class-scope variables (static and field)
-        Map<String, String> savedTypeMap = new HashMap<>();
-        Map<String, KindType> savedKindMap = new HashMap<>();
-        Map<String, Integer> savedIndexMap = new HashMap<>();
-
-        // Save only static and field variables
-        for (String name : typeMap.keySet()) {
-            KindType kind = kindMap.get(name);
-            if (kind == KindType.STATIC || kind == KindType.FIELD) {
-                savedTypeMap.put(name, typeMap.get(name));
-                savedKindMap.put(name, kindMap.get(name));
-                savedIndexMap.put(name, indexMap.get(name));
-            }
-        }
-
-        // Clear all maps
-        typeMap.clear();
-        kindMap.clear();
-        indexMap.clear();
-
-        // Restore class-scope variables
-        typeMap.putAll(savedTypeMap);
-        kindMap.putAll(savedKindMap);
-        indexMap.putAll(savedIndexMap);
+        subroutineScope.clear();
 
         // Reset subroutine-scope counters
-        kindCount.put(KindType.ARG, 0);
-        kindCount.put(KindType.VAR, 0);
+        kindCount[KindType.ARG.ordinal()] = 0;
+        kindCount[KindType.VAR.ordinal()] = 0;
     }
 
     /**
      * Defines a new variable in the symbol table.
-     * 
+     *
      * @param name The variable name
      * @param type The variable type (int, boolean, object type, etc)
      * @param kind The kind of variable (static, field, arg, var)
      * @throws IllegalArgumentException if name is invalid
-     * @throws IllegalStateException    if variable is already defined
+     * @throws IllegalStateException    if variable is already defined in its scope
      */
     public void define(String name, String type, KindType kind) {
-        if (name == null || name.trim().isEmpty()) {
-            throw new IllegalArgumentException("Variable name cannot be empty");
-        }
-        if (!name.matches("[a-zA-Z_][a-zA-Z0-9_]*")) {
-            throw new IllegalArgumentException("Invalid variable name: " + name);
-        }
-        if (kindMap.containsKey(name)) {
-            throw new IllegalStateException("Variable " + name + " already defined");
-        }
+        validate(name);
+        add(identifiers.intern(name), identifiers.intern(type), kind);
+    }
 
-        typeMap.put(name, type);
-        kindMap.put(name, kind);
-        indexMap.put(name, kindCount.get(kind));
-        kindCount.put(kind, kindCount.get(kind) + 1);
+    /**
+     * Defines a new variable by identifier IDs.
+     *
+     * @param name The ID of the variable name
+     * @param type The ID of the variable type
+     * @param kind The kind of variable (static, field, arg, var)
+     * @throws IllegalArgumentException if name is invalid
+     * @throws IllegalStateException    if variable is already defined in its scope
+     */
+    public void define(int name, int type, KindType kind) {
+        validate(identifiers.name(name));
+        add(name, type, kind);
+    }
+
+    private void add(int name, int type, KindType kind) {
+        Scope scope = (kind == KindType.STATIC || kind == KindType.FIELD) ? classScope : subroutineScope;
+        if (scope.contains(name)) {
+            throw new IllegalStateException("Variable " + identifiers.name(name) + " already defined");
+        }
+        scope.add(name, type, kind, kindCount[kind.ordinal()]++);
     }
 
     /**
      * Returns the number of variables of a given kind.
-     * 
+     *
      * @param kind The kind of variable to count
      * @return The number of variables of that kind
      */
     public int varCount(KindType kind) {
-        return kindCount.get(kind);
+        return kindCount[kind.ordinal()];
     }
 
     /**
      * Returns the kind of a named variable.
-     * 
+     *
      * @param name The variable name
      * @return The kind of the variable, or NONE if not found
      */
     public KindType kindOf(String name) {
-        return kindMap.getOrDefault(name, KindType.NONE);
+        int id = identifiers.find(name);
+        return id >= 0 ? kindOf(id) : KindType.NONE;
+    }
+
+    /**
+     * Returns the kind of a variable by the ID of its name.
+     *
+     * @param name The ID of the variable name
+     * @return The kind of the variable, or NONE if not found
+     */
+    public KindType kindOf(int name) {
+        Scope scope = scopeOf(name);
+        return scope != null ? KINDS[scope.kinds[name]] : KindType.NONE;
     }
 
     /**
      * Returns the type of a named variable.
-     * 
+     *
      * @param name The variable name
      * @return The type of the variable
      * @throws IllegalArgumentException if variable not found
      */
     public String typeOf(String name) {
-        String type = typeMap.get(name);
-        if (type == null) {
-            throw new IllegalArgumentException("Identifier " + name + " not found");
-        }
-        return type;
+        return identifiers.name(typeIdOf(lookup(name)));
+    }
+
+    /**
+     * Returns the ID of the type of a variable by the ID of its name.
+     *
+     * @param name The ID of the variable name
+     * @return The ID of the type of the variable
+     * @throws IllegalArgumentException if variable not found
+     */
+    public int typeIdOf(int name) {
+        return require(name).types[name];
     }
 
     /**
      * Returns the index of a named variable.
-     * 
+     *
      * @param name The variable name
      * @return The index of the variable in its segment
      * @throws IllegalArgumentException if variable not found
      */
     public int indexOf(String name) {
-        Integer index = indexMap.get(name);
-        if (index == null) {
+        return indexOf(lookup(name));
+    }
+
+    /**
+     * Returns the index of a variable by the ID of its name.
+     *
+     * @param name The ID of the variable name
+     * @return The index of the variable in its segment
+     * @throws IllegalArgumentException if variable not found
+     */
+    public int indexOf(int name) {
+        return require(name).indices[name];
+    }
+
+    /**
+     * Returns the scope defining a name, the subroutine scope first, or null.
+     */
+    private Scope scopeOf(int name) {
+        if (subroutineScope.contains(name)) {
+            return subroutineScope;
+        }
+        return classScope.contains(name) ? classScope : null;
+    }
+
+    private Scope require(int name) {
+        Scope scope = scopeOf(name);
+        if (scope == null) {
+            throw new IllegalArgumentException("Identifier " + identifiers.name(name) + " not found");
+        }
+        return scope;
+    }
+
+    private int lookup(String name) {
+        int id = identifiers.find(name);
+        if (id < 0) {
             throw new IllegalArgumentException("Identifier " + name + " not found");
         }
-        return index;
+        return id;
+    }
+
+    private static void validate(String name) {
+        if (name == null || name.trim().isEmpty()) {
+            throw new IllegalArgumentException("Variable name cannot be empty");
+        }
+        if (!isIdentifier(name)) {
+            throw new IllegalArgumentException("Invalid variable name: " + name);
+        }
+    }
+
+    /**
+     * Returns whether a name is a letter or underscore followed by letters,
+     * digits and underscores, all ASCII.
+     */
+    private static boolean isIdentifier(String name) {
+        for (int i = 0; i < name.length(); i++) {
+            char ch = name.charAt(i);
+            boolean letter = (ch >= 'a' && ch <= 'z') || (ch >= 'A' && ch <= 'Z') || ch == '_';
+            if (!letter && (i == 0 || ch < '0' || ch > '9')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The variables of one scope, in parallel arrays indexed by identifier
+     * ID. Every ID is stamped with the generation that defined it in this
+     * scope, so clearing the scope just starts a new generation instead of
+     * wiping the arrays.
+     */
+    private static final class Scope {
+
+        private static final int INITIAL_CAPACITY = 64;
+
+        byte[] kinds = new byte[INITIAL_CAPACITY];
+        int[] types = new int[INITIAL_CAPACITY];
+        int[] indices = new int[INITIAL_CAPACITY];
+
+        private int[] stamps = new int[INITIAL_CAPACITY]; // Generation that defined each ID.
+        private int generation = 1;
+
+        boolean contains(int id) {
+            return id < stamps.length && stamps[id] == generation;
+        }
+
+        void add(int id, int type, KindType kind, int index) {
+            if (id >= stamps.length) {
+                int capacity = Math.max(stamps.length * 2, id + 1);
+                kinds = Arrays.copyOf(kinds, capacity);
+                types = Arrays.copyOf(types, capacity);
+                indices = Arrays.copyOf(indices, capacity);
+                stamps = Arrays.copyOf(stamps, capacity);
+            }
+            kinds[id] = (byte) kind.ordinal();
+            types[id] = type;
+            indices[id] = index;
+            stamps[id] = generation;
+        }
+
+        void clear() {
+            if (++generation == 0) { // Wrapped around; old stamps could look current again.
+                Arrays.fill(stamps, 0);
+                generation = 1;
+            }
+        }
     }
 }
\ No newline at end of file
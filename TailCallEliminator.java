@@ -0,0 +1,74 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Turns the calls a subroutine makes to itself right before returning into
+ * a jump back to its start, so that such recursion runs in constant stack
+ * space. The arguments of the call are popped into the argument segment,
+ * and the locals the subroutine reads are set back to 0, as a new call would
+ * find them.
+ */
+class TailCallEliminator {
+
+    private final List<String> loops = new ArrayList<>();
+
+    /**
+     * Returns the names of the subroutines whose tail calls were turned into
+     * loops so far.
+     */
+    public List<String> getLoops() {
+        return loops;
+    }
+
+    /**
+     * Optimizes the code of one subroutine.
+     *
+     * @param code the code to optimize; it is not modified
+     * @return the optimized code, or the same code if it has no tail call
+     */
+    public VMCode optimize(VMCode code) {
+        int nArgs = code.getArgumentCount();
+        boolean found = false;
+        for (int i = 0; i < code.size() && !found; i++) {
+            found = isTailCall(code, i, nArgs);
+        }
+        if (!found) {
+            return code;
+        }
+
+        boolean[] readLocals = new boolean[code.getLocalCount()];
+        for (int i = 0; i < code.size(); i++) {
+            if (code.is(i, VMCode.PUSH) && code.segment(i) == Segment.LOCAL) {
+                readLocals[code.operand(i)] = true;
+            }
+        }
+
+        String startLabel = code.getName() + "$start";
+        VMCode out = code.emptyCopy();
+        out.addLabel(startLabel);
+        for (int i = 0; i < code.size(); i++) {
+            if (!isTailCall(code, i, nArgs)) {
+                out.copy(code, i);
+                continue;
+            }
+            for (int argument = nArgs - 1; argument >= 0; argument--) {
+                out.addPop(Segment.ARG, argument);
+            }
+            for (int local = 0; local < readLocals.length; local++) {
+                if (readLocals[local]) {
+                    out.addPush(Segment.CONST, 0);
+                    out.addPop(Segment.LOCAL, local);
+                }
+            }
+            out.addGoto(startLabel);
+            i++; // Skip the return.
+        }
+        loops.add(code.getName());
+        return out;
+    }
+
+    private static boolean isTailCall(VMCode code, int index, int nArgs) {
+        return code.is(index, VMCode.CALL) && code.is(index + 1, VMCode.RETURN)
+                && code.operand(index) == nArgs && code.callee(index).equals(code.getName());
+    }
+}
@@ -0,0 +1,78 @@
+import java.util.Arrays;
+
+/**
+ * A token stream stored as parallel primitive arrays.
+ * Each token is described by its type, its position in the source, the line
+ * it starts on and a pre-decoded value: the keyword ordinal for keywords, the
+ * character for symbols and the number for integer constants. Token text is
+ * only turned into a String when a caller asks for it.
+ */
+class TokenBuffer {
+
+    private static final TokenType[] TYPES = TokenType.values();
+    private static final int INITIAL_CAPACITY = 256;
+
+    private byte[] types = new byte[INITIAL_CAPACITY];
+    private int[] starts = new int[INITIAL_CAPACITY];
+    private int[] lengths = new int[INITIAL_CAPACITY];
+    private int[] lines = new int[INITIAL_CAPACITY];
+    private int[] values = new int[INITIAL_CAPACITY];
+    private int count;
+
+    /**
+     * Appends a token to the buffer.
+     *
+     * @param type   the token type
+     * @param start  the index of the first character of the token
+     * @param length the number of characters in the token
+     * @param line   the line the token starts on, counting from 1
+     * @param value  the pre-decoded value of the token
+     */
+    public void add(TokenType type, int start, int length, int line, int value) {
+        if (count == types.length) {
+            grow();
+        }
+        types[count] = (byte) type.ordinal();
+        starts[count] = start;
+        lengths[count] = length;
+        lines[count] = line;
+        values[count] = value;
+        count++;
+    }
+
+    private void grow() {
+        int capacity = types.length * 2;
+        types = Arrays.copyOf(types, capacity);
+        starts = Arrays.copyOf(starts, capacity);
+        lengths = Arrays.copyOf(lengths, capacity);
+        lines = Arrays.copyOf(lines, capacity);
+        values = Arrays.copyOf(values, capacity);
+    }
+
+    /**
+     * Returns the number of tokens in the buffer.
+     */
+    public int size() {
+        return count;
+    }
+
+    public TokenType type(int index) {
+        return TYPES[types[index]];
+    }
+
+    public int start(int index) {
+        return starts[index];
+    }
+
+    public int length(int index) {
+        return lengths[index];
+    }
+
+    public int line(int index) {
+        return lines[index];
+    }
+
+    public int value(int index) {
+        return values[index];
+    }
+}
@@ -0,0 +1,432 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The VM instructions of one subroutine, held in parallel primitive arrays
+ * so that they can be analysed and rewritten before they are written out.
+ *
+ * Every instruction has an opcode, a segment, a numeric operand and a symbol
+ * reference, each in its own array. Push and pop use the segment and keep the
+ * index as operand; arithmetic keeps the Command ordinal as operand. Label,
+ * goto and if-goto refer to a label number, and every label number is
+ * resolved to the index of the instruction that defines it. Call refers to an
+ * entry in the table of called names and keeps the argument count as operand.
+ * The function header is not an instruction: its name and local count are
+ * properties of the code.
+ */
+class VMCode {
+
+    // Opcodes.
+    static final byte PUSH = 0;
+    static final byte POP = 1;
+    static final byte ARITHMETIC = 2;
+    static final byte LABEL = 3;
+    static final byte GOTO = 4;
+    static final byte IF_GOTO = 5;
+    static final byte CALL = 6;
+    static final byte RETURN = 7;
+
+    private static final Segment[] SEGMENTS = Segment.values();
+    private static final Command[] COMMANDS = Command.values();
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final String name;
+    private int nLocals;
+    private int nArgs = -1;
+
+    private byte[] opcodes = new byte[INITIAL_CAPACITY];
+    private byte[] segments = new byte[INITIAL_CAPACITY];
+    private int[] operands = new int[INITIAL_CAPACITY];
+    private int[] symbols = new int[INITIAL_CAPACITY];
+    private int size;
+
+    // Labels, by label number, with the index of the instruction defining
+    // each one, or -1 while it is undefined.
+    private final List<String> labelNames = new ArrayList<>();
+    private final Map<String, Integer> labelNumbers = new HashMap<>();
+    private int[] labelTargets = new int[16];
+
+    // Names of the called subroutines, by symbol number.
+    private final List<String> callees = new ArrayList<>();
+    private final Map<String, Integer> calleeNumbers = new HashMap<>();
+
+    private int[] labelUses; // Jumps to each label, counted on demand.
+
+    /**
+     * Creates the empty code of a subroutine.
+     *
+     * @param name    the full name of the function, such as Main.main
+     * @param nLocals the number of local variables
+     */
+    public VMCode(String name, int nLocals) {
+        this.name = name;
+        this.nLocals = nLocals;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getLocalCount() {
+        return nLocals;
+    }
+
+    public void setLocalCount(int nLocals) {
+        this.nLocals = nLocals;
+    }
+
+    /**
+     * Returns the number of arguments the subroutine takes, counting the
+     * object of a method, or -1 if it is not known.
+     */
+    public int getArgumentCount() {
+        return nArgs;
+    }
+
+    public void setArgumentCount(int nArgs) {
+        this.nArgs = nArgs;
+    }
+
+    /**
+     * Returns the number of instructions.
+     */
+    public int size() {
+        return size;
+    }
+
+    public byte opcode(int index) {
+        return opcodes[index];
+    }
+
+    /**
+     * Returns the segment of a push or pop.
+     */
+    public Segment segment(int index) {
+        return SEGMENTS[segments[index]];
+    }
+
+    /**
+     * Returns the numeric operand of an instruction: the index of a push or
+     * pop, the Command ordinal of an arithmetic instruction, or the argument
+     * count of a call.
+     */
+    public int operand(int index) {
+        return operands[index];
+    }
+
+    /**
+     * Returns the symbol reference of an instruction: the label number of a
+     * label, goto or if-goto, or the callee number of a call.
+     */
+    public int symbol(int index) {
+        return symbols[index];
+    }
+
+    /**
+     * Returns the command of an arithmetic instruction.
+     */
+    public Command command(int index) {
+        return COMMANDS[operands[index]];
+    }
+
+    /**
+     * Returns the called name of a call instruction.
+     */
+    public String callee(int index) {
+        return callees.get(symbols[index]);
+    }
+
+    /**
+     * Returns the number of distinct labels.
+     */
+    public int labelCount() {
+        return labelNames.size();
+    }
+
+    public String labelName(int label) {
+        return labelNames.get(label);
+    }
+
+    /**
+     * Returns the index of the label instruction defining a label, or -1 if
+     * the label is used but not defined in this subroutine.
+     */
+    public int labelTarget(int label) {
+        return labelTargets[label];
+    }
+
+    /**
+     * Returns the number of goto and if-goto instructions jumping to a label.
+     * Counted once, on first use; the code must not change afterwards.
+     */
+    public int labelUses(int label) {
+        if (labelUses == null) {
+            labelUses = new int[labelNames.size()];
+            for (int i = 0; i < size; i++) {
+                if (opcodes[i] == GOTO || opcodes[i] == IF_GOTO) {
+                    labelUses[symbols[i]]++;
+                }
+            }
+        }
+        return labelUses[label];
+    }
+
+    /**
+     * Returns whether an instruction is a push of the given constant.
+     */
+    public boolean isConstant(int index, int value) {
+        return index >= 0 && index < size && opcodes[index] == PUSH && segments[index] == Segment.CONST.ordinal()
+                && operands[index] == value;
+    }
+
+    /**
+     * Returns whether an instruction is the given arithmetic command.
+     */
+    public boolean isArithmetic(int index, Command command) {
+        return index >= 0 && index < size && opcodes[index] == ARITHMETIC && operands[index] == command.ordinal();
+    }
+
+    /**
+     * Returns whether an instruction has the given opcode.
+     */
+    public boolean is(int index, byte opcode) {
+        return index >= 0 && index < size && opcodes[index] == opcode;
+    }
+
+    /**
+     * Returns the index of the first instruction computing the value that the
+     * instructions before an index leave on top of the stack, or -1 if the
+     * value is not computed by straight-line code.
+     */
+    public int valueStart(int end) {
+        int needed = 1;
+        for (int i = end - 1; i >= 0; i--) {
+            switch (opcodes[i]) {
+                case PUSH:
+                    needed--;
+                    break;
+                case POP:
+                    needed++;
+                    break;
+                case ARITHMETIC:
+                    if (operands[i] != Command.NEG.ordinal() && operands[i] != Command.NOT.ordinal()) {
+                        needed++;
+                    }
+                    break;
+                case CALL:
+                    needed += operands[i] - 1;
+                    break;
+                default:
+                    return -1;
+            }
+            if (needed == 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns whether the value the instructions before an index leave on top
+     * of the stack is known to be true (-1) or false (0): a comparison, a
+     * boolean constant, or not, and and or of such values.
+     */
+    public boolean isBoolean(int end) {
+        int last = end - 1;
+        if (isConstant(last, 0) || (isConstant(last - 1, 1) && isArithmetic(last, Command.NEG))) {
+            return true;
+        }
+        if (!is(last, ARITHMETIC)) {
+            return false;
+        }
+        switch (command(last)) {
+            case EQ:
+            case GT:
+            case LT:
+                return true;
+            case NOT:
+                return isBoolean(last);
+            case AND:
+            case OR:
+                int start = valueStart(last);
+                return start >= 0 && isBoolean(last) && isBoolean(start);
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Returns an empty code with the same name and local count, to build a
+     * rewritten version of this code in.
+     */
+    public VMCode emptyCopy() {
+        VMCode copy = new VMCode(name, nLocals);
+        copy.nArgs = nArgs;
+        return copy;
+    }
+
+    /**
+     * Appends a copy of an instruction of another code, keeping its label or
+     * called name.
+     */
+    public void copy(VMCode from, int index) {
+        switch (from.opcodes[index]) {
+            case LABEL:
+                addLabel(from.labelName(from.symbols[index]));
+                break;
+            case GOTO:
+                addGoto(from.labelName(from.symbols[index]));
+                break;
+            case IF_GOTO:
+                addIf(from.labelName(from.symbols[index]));
+                break;
+            case CALL:
+                addCall(from.callee(index), from.operands[index]);
+                break;
+            default:
+                add(from.opcodes[index], from.segments[index], from.operands[index], 0);
+                break;
+        }
+    }
+
+    /**
+     * Drops the instructions from an index on, to rewrite the end of code
+     * that is being built. Dropped labels must be added again.
+     */
+    public void truncate(int newSize) {
+        size = newSize;
+        labelUses = null;
+    }
+
+    /**
+     * Removes the instructions from an index on and returns them as a code of
+     * their own, to be appended again later.
+     */
+    public VMCode cut(int from) {
+        VMCode tail = emptyCopy();
+        tail.append(this, from);
+        truncate(from);
+        return tail;
+    }
+
+    /**
+     * Appends copies of the instructions of another code from an index on.
+     */
+    public void append(VMCode from, int index) {
+        for (int i = index; i < from.size; i++) {
+            copy(from, i);
+        }
+    }
+
+    public void addPush(Segment segment, int index) {
+        add(PUSH, segment.ordinal(), index, 0);
+    }
+
+    public void addPop(Segment segment, int index) {
+        add(POP, segment.ordinal(), index, 0);
+    }
+
+    public void addArithmetic(Command command) {
+        add(ARITHMETIC, 0, command.ordinal(), 0);
+    }
+
+    public void addLabel(String label) {
+        int number = labelNumber(label);
+        labelTargets[number] = size;
+        add(LABEL, 0, 0, number);
+    }
+
+    public void addGoto(String label) {
+        add(GOTO, 0, 0, labelNumber(label));
+    }
+
+    public void addIf(String label) {
+        add(IF_GOTO, 0, 0, labelNumber(label));
+    }
+
+    public void addCall(String callee, int nArgs) {
+        Integer number = calleeNumbers.get(callee);
+        if (number == null) {
+            number = callees.size();
+            callees.add(callee);
+            calleeNumbers.put(callee, number);
+        }
+        add(CALL, 0, nArgs, number);
+    }
+
+    public void addReturn() {
+        add(RETURN, 0, 0, 0);
+    }
+
+    /**
+     * Writes the subroutine, header first, through a writer.
+     *
+     * @param writer the writer receiving the commands
+     * @throws IOException if the writer fails
+     */
+    public void lower(VMWriter writer) throws IOException {
+        writer.writeFunction(name, nLocals);
+        for (int i = 0; i < size; i++) {
+            switch (opcodes[i]) {
+                case PUSH:
+                    writer.writePush(SEGMENTS[segments[i]], operands[i]);
+                    break;
+                case POP:
+                    writer.writePop(SEGMENTS[segments[i]], operands[i]);
+                    break;
+                case ARITHMETIC:
+                    writer.writeArithmetic(COMMANDS[operands[i]]);
+                    break;
+                case LABEL:
+                    writer.writeLabel(labelNames.get(symbols[i]));
+                    break;
+                case GOTO:
+                    writer.writeGoto(labelNames.get(symbols[i]));
+                    break;
+                case IF_GOTO:
+                    writer.writeIf(labelNames.get(symbols[i]));
+                    break;
+                case CALL:
+                    writer.writeCall(callees.get(symbols[i]), operands[i]);
+                    break;
+                case RETURN:
+                    writer.writeReturn();
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown opcode " + opcodes[i]);
+            }
+        }
+    }
+
+    private int labelNumber(String label) {
+        Integer number = labelNumbers.get(label);
+        if (number == null) {
+            number = labelNames.size();
+            labelNames.add(label);
+            labelNumbers.put(label, number);
+            if (number == labelTargets.length) {
+                labelTargets = Arrays.copyOf(labelTargets, number * 2);
+            }
+            labelTargets[number] = -1;
+        }
+        return number;
+    }
+
+    private void add(byte opcode, int segment, int operand, int symbol) {
+        if (size == opcodes.length) {
+            opcodes = Arrays.copyOf(opcodes, size * 2);
+            segments = Arrays.copyOf(segments, size * 2);
+            operands = Arrays.copyOf(operands, size * 2);
+            symbols = Arrays.copyOf(symbols, size * 2);
+        }
+        opcodes[size] = opcode;
+        segments[size] = (byte) segment;
+        operands[size] = operand;
+        symbols[size] = symbol;
+        size++;
+    }
+}
@@ -0,0 +1,79 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A VMWriter that records the commands of a class as VMCode, one per
+ * subroutine, instead of encoding them. The engine writes to it exactly as it
+ * writes to any other writer, and the recorded code is lowered through the
+ * real writer once the whole class has been compiled and optimized.
+ */
+class VMCodeBuilder extends VMWriter {
+
+    private final List<VMCode> subroutines = new ArrayList<>();
+    private VMCode current;
+
+    /**
+     * Returns the code of every subroutine recorded so far, in order.
+     */
+    public List<VMCode> getSubroutines() {
+        return subroutines;
+    }
+
+    @Override
+    public void writeFunction(String name, int nLocals) {
+        current = new VMCode(name, nLocals);
+        subroutines.add(current);
+    }
+
+    @Override
+    public void writePush(Segment segment, int index) {
+        current().addPush(segment, index);
+    }
+
+    @Override
+    public void writePop(Segment segment, int index) {
+        current().addPop(segment, index);
+    }
+
+    @Override
+    public void writeArithmetic(Command command) {
+        current().addArithmetic(command);
+    }
+
+    @Override
+    public void writeLabel(String label) {
+        current().addLabel(label);
+    }
+
+    @Override
+    public void writeGoto(String label) {
+        current().addGoto(label);
+    }
+
+    @Override
+    public void writeIf(String label) {
+        current().addIf(label);
+    }
+
+    @Override
+    public void writeCall(String name, int nArgs) {
+        current().addCall(name, nArgs);
+    }
+
+    @Override
+    public void writeReturn() {
+        current().addReturn();
+    }
+
+    /**
+     * Returns the code of the subroutine being recorded.
+     *
+     * @throws IllegalStateException if no function has been written yet
+     */
+    public VMCode current() {
+        if (current == null) {
+            throw new IllegalStateException("VM command outside of a function");
+        }
+        return current;
+    }
+}
@@ -0,0 +1,145 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decodes the binary output of BinaryVMWriter.
+ * Every decoded command is replayed through a VMWriter, so decoding to a text
+ * writer reproduces the exact .vm text the compiler would have written.
+ */
+class VMDecoder {
+
+    private static final Segment[] SEGMENTS = Segment.values();
+    private static final Command[] COMMANDS = Command.values();
+
+    private final byte[] input;
+    private final List<String> constantPool = new ArrayList<>();
+    private int position;
+
+    private VMDecoder(byte[] input) {
+        this.input = input;
+    }
+
+    /**
+     * Decodes a binary VM file into a text VM file.
+     *
+     * @param inputFile  the binary file to read
+     * @param outputFile the .vm file to write
+     * @throws IOException if a file cannot be read or written, or the input is malformed
+     */
+    public static void decodeFile(String inputFile, String outputFile) throws IOException {
+        byte[] input = Files.readAllBytes(Paths.get(inputFile));
+        VMWriter writer = new VMWriter(outputFile);
+        try {
+            decode(input, writer);
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Decodes binary VM code and replays each command through a writer.
+     *
+     * @param input  the binary VM code
+     * @param writer the writer receiving the commands
+     * @throws IOException if the writer fails or the input is malformed
+     */
+    public static void decode(byte[] input, VMWriter writer) throws IOException {
+        new VMDecoder(input).decodeInto(writer);
+    }
+
+    private void decodeInto(VMWriter writer) throws IOException {
+        for (byte magic : BinaryVMWriter.MAGIC) {
+            if (position >= input.length || input[position++] != magic) {
+                throw new IOException("Not a binary VM file");
+            }
+        }
+        int version = readByte();
+        if (version != BinaryVMWriter.VERSION) {
+            throw new IOException("Unsupported binary VM version: " + version);
+        }
+
+        while (position < input.length) {
+            int opcode = readByte();
+            if (opcode < COMMANDS.length) {
+                writer.writeArithmetic(COMMANDS[opcode]);
+            } else if (opcode >= BinaryVMWriter.PUSH && opcode < BinaryVMWriter.PUSH + SEGMENTS.length) {
+                writer.writePush(SEGMENTS[opcode - BinaryVMWriter.PUSH], readNumber());
+            } else if (opcode >= BinaryVMWriter.POP && opcode < BinaryVMWriter.POP + SEGMENTS.length) {
+                writer.writePop(SEGMENTS[opcode - BinaryVMWriter.POP], readNumber());
+            } else {
+                switch (opcode) {
+                    case BinaryVMWriter.LABEL:
+                        writer.writeLabel(readName());
+                        break;
+                    case BinaryVMWriter.GOTO:
+                        writer.writeGoto(readName());
+                        break;
+                    case BinaryVMWriter.IF_GOTO:
+                        writer.writeIf(readName());
+                        break;
+                    case BinaryVMWriter.FUNCTION: {
+                        String name = readName();
+                        writer.writeFunction(name, readNumber());
+                        break;
+                    }
+                    case BinaryVMWriter.CALL: {
+                        String name = readName();
+                        writer.writeCall(name, readNumber());
+                        break;
+                    }
+                    case BinaryVMWriter.RETURN:
+                        writer.writeReturn();
+                        break;
+                    default:
+                        throw new IOException("Unknown opcode " + opcode + " at offset " + (position - 1));
+                }
+            }
+        }
+    }
+
+    private int readByte() throws IOException {
+        if (position >= input.length) {
+            throw new IOException("Unexpected end of binary VM code");
+        }
+        return input[position++] & 0xFF;
+    }
+
+    private int readVarint() throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = readByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint at offset " + position);
+    }
+
+    private int readNumber() throws IOException {
+        int value = readVarint();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private String readName() throws IOException {
+        int index = readVarint();
+        if (index > 0) {
+            if (index > constantPool.size()) {
+                throw new IOException("Bad constant pool index " + index + " at offset " + position);
+            }
+            return constantPool.get(index - 1);
+        }
+        int length = readVarint();
+        if (length < 0 || position + length > input.length) {
+            throw new IOException("Unexpected end of binary VM code");
+        }
+        String name = new String(input, position, length, StandardCharsets.UTF_8);
+        position += length;
+        constantPool.add(name);
+        return name;
+    }
+}
@@ -0,0 +1,75 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs the optimization passes the options ask for over the VM code of a
+ * class, and keeps a report of what each pass achieved for the compile log.
+ */
+class VMOptimizer {
+
+    private final ConstantFolder folder;
+    private final CommonSubexpressionEliminator subexpressions;
+    private final TailCallEliminator tailCalls;
+    private final PeepholeOptimizer peephole;
+    private final List<String> report = new ArrayList<>();
+
+    public VMOptimizer(CompilerOptions options) {
+        List<String> disabled = options.getDisabled();
+        boolean folding = !disabled.contains("constant-folding");
+        boolean reducing = !disabled.contains("strength-reduction");
+        this.folder = folding || reducing ? new ConstantFolder(folding, reducing) : null;
+        this.subexpressions = disabled.contains("common-subexpressions") ? null
+                : new CommonSubexpressionEliminator();
+        this.tailCalls = disabled.contains("tail-calls") ? null : new TailCallEliminator();
+        this.peephole = PeepholeOptimizer.withDefaults(disabled);
+    }
+
+    /**
+     * Optimizes the subroutines of a class.
+     *
+     * @param subroutines the code of each subroutine, in order
+     * @return the optimized code of each subroutine, in the same order
+     */
+    public List<VMCode> optimize(List<VMCode> subroutines) {
+        List<VMCode> optimized = new ArrayList<>(subroutines.size());
+        int before = 0;
+        int after = 0;
+        for (VMCode code : subroutines) {
+            if (folder != null) {
+                code = folder.optimize(code);
+            }
+            if (subexpressions != null) {
+                code = subexpressions.optimize(code);
+            }
+            if (tailCalls != null) {
+                code = tailCalls.optimize(code);
+            }
+            before += code.size();
+            code = peephole.optimize(code);
+            after += code.size();
+            optimized.add(code);
+        }
+        if (folder != null) {
+            report.add(String.format("Constant folding folded %d operations and reduced %d multiplications or divisions",
+                    folder.getFolded(), folder.getReduced()));
+        }
+        if (subexpressions != null) {
+            report.add(String.format("Common subexpression elimination saved %d VM instructions",
+                    subexpressions.getSaved()));
+        }
+        if (tailCalls != null) {
+            List<String> loops = tailCalls.getLoops();
+            report.add(String.format("Tail call elimination turned %d subroutines into loops%s", loops.size(),
+                    loops.isEmpty() ? "" : ": " + String.join(", ", loops)));
+        }
+        report.add(String.format("Peephole optimization removed %d of %d VM instructions", before - after, before));
+        return optimized;
+    }
+
+    /**
+     * Returns one line per optimization pass that ran.
+     */
+    public List<String> getReport() {
+        return report;
+    }
+}
@@ -1,99 +1,244 @@
-import java.io.BufferedWriter;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 
+/**
+ * Writes VM commands to an output file.
+ * Commands are encoded straight into a growable byte buffer from precomputed
+ * byte sequences, and the buffer is written to the file according to the
+ * flush policy: by default once, when the writer is closed.
+ */
 class VMWriter {
 
-    private BufferedWriter writer;
+    private static final int INITIAL_CAPACITY = 8 * 1024;
+
+    // Size at which the BUFFERED policy writes the buffer out.
+    private static final int FLUSH_THRESHOLD = 8 * 1024;
+
+    private static final byte[][] PUSH = new byte[Segment.values().length][];
+    private static final byte[][] POP = new byte[Segment.values().length][];
+    private static final byte[][] ARITHMETIC = new byte[Command.values().length][];
+    private static final byte[] LABEL = ascii("\n" + "label ");
+    private static final byte[] GOTO = ascii("\n" + "    goto ");
+    private static final byte[] IF_GOTO = ascii("\n" + "    if-goto ");
+    private static final byte[] CALL = ascii("\n" + "    call ");
+    private static final byte[] FIRST_FUNCTION = ascii("function ");
+    private static final byte[] FUNCTION = ascii("\n" + "function ");
+    private static final byte[] RETURN = ascii("\n" + "    return");
+
+    static {
+        for (Segment segment : Segment.values()) {
+            PUSH[segment.ordinal()] = ascii("\n" + "    push " + segmentName(segment) + " ");
+            POP[segment.ordinal()] = ascii("\n" + "    pop " + segmentName(segment) + " ");
+        }
+        for (Command command : Command.values()) {
+            ARITHMETIC[command.ordinal()] = ascii("\n" + "    " + command.toString().toLowerCase());
+        }
+    }
+
+    private WritableByteChannel channel;
+    private FlushPolicy flushPolicy;
+    private byte[] buffer;
+    private int size;
     private boolean isFirstCommand;
 
     public VMWriter(String outputFile) throws IOException {
-        writer = new BufferedWriter(new FileWriter(outputFile));
+        this(outputFile, FlushPolicy.ON_CLOSE);
+    }
+
+    public VMWriter(String outputFile, FlushPolicy flushPolicy) throws IOException {
+        this(FileChannel.open(Paths.get(outputFile), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE), flushPolicy);
+    }
+
+    /**
+     * Creates a writer that discards its output, for subclasses that consume
+     * the commands themselves by overriding the write methods.
+     */
+    protected VMWriter() {
+        this(Channels.newChannel(OutputStream.nullOutputStream()), FlushPolicy.INSTRUCTION);
+    }
+
+    VMWriter(WritableByteChannel channel, FlushPolicy flushPolicy) {
+        this.channel = channel;
+        this.flushPolicy = flushPolicy;
+        this.buffer = new byte[INITIAL_CAPACITY];
+        this.size = 0;
         isFirstCommand = true;
     }
 
-    public void writePush(Segment segment, int index) throws IOException {
-        String str;
+    /**
+     * Returns the VM name of a segment.
+     */
+    static String segmentName(Segment segment) {
         switch (segment) {
             case CONST:
-                str = "constant";
-                break;
+                return "constant";
             case ARG:
-                str = "argument";
-                break;
+                return "argument";
             default:
-                str = segment.toString().toLowerCase();
-                break;
+                return segment.toString().toLowerCase();
         }
-        writer.write("\n" + "    push " + str + " " + index);
-        writer.flush();
+    }
+
+    public void writePush(Segment segment, int index) throws IOException {
+        append(PUSH[segment.ordinal()]);
+        appendNumber(index);
+        endCommand();
     }
 
     public void writePop(Segment segment, int index) throws IOException {
-        String str;
-        switch (segment) {
-            case CONST:
-                str = "constant";
-                break;
-            case ARG:
-                str = "argument";
-                break;
-            default:
-                str = segment.toString().toLowerCase();
-                break;
-        }
-        writer.write("\n" + "    pop " + str + " " + index);
-        writer.flush();
+        append(POP[segment.ordinal()]);
+        appendNumber(index);
+        endCommand();
     }
 
     public void writeArithmetic(Command command) throws IOException {
-        if (command == Command.NEG) {
-            writer.write("\n" + "    neg");
-        } else {
-            writer.write("\n" + "    " + command.toString().toLowerCase());
-        }
-        writer.flush();
+        append(ARITHMETIC[command.ordinal()]);
+        endCommand();
     }
 
     public void writeLabel(String label) throws IOException {
-        writer.write("\n" + "label " + label);
-        writer.flush();
+        append(LABEL);
+        appendName(label);
+        endCommand();
     }
 
     public void writeGoto(String label) throws IOException {
-        writer.write("\n" + "    goto " + label);
-        writer.flush();
+        append(GOTO);
+        appendName(label);
+        endCommand();
     }
 
     public void writeIf(String label) throws IOException {
-        writer.write("\n" + "    if-goto " + label);
-        writer.flush();
+        append(IF_GOTO);
+        appendName(label);
+        endCommand();
     }
 
     public void writeCall(String name, int nArgs) throws IOException {
-        writer.write("\n" + "    call " + name + " " + nArgs);
-        writer.flush();
+        append(CALL);
+        appendName(name);
+        appendByte(' ');
+        appendNumber(nArgs);
+        endCommand();
     }
 
     public void writeFunction(String name, int nLocals) throws IOException {
-        String command = "";
         if (isFirstCommand) {
-            command = "function " + name + " " + nLocals;
+            append(FIRST_FUNCTION);
             isFirstCommand = false;
         } else {
-            command = "\n" + "function " + name + " " + nLocals;
+            append(FUNCTION);
         }
-        writer.write(command);
-        writer.flush();
+        appendName(name);
+        appendByte(' ');
+        appendNumber(nLocals);
+        endCommand();
     }
 
     public void writeReturn() throws IOException {
-        writer.write("\n" + "    return");
-        writer.flush();
+        append(RETURN);
+        endCommand();
     }
 
     public void close() throws IOException {
-        writer.close();
+        if (channel == null) {
+            return;
+        }
+        try {
+            flush();
+        } finally {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    /**
+     * Writes everything buffered so far to the output.
+     */
+    public void flush() throws IOException {
+        ByteBuffer pending = ByteBuffer.wrap(buffer, 0, size);
+        while (pending.hasRemaining()) {
+            channel.write(pending);
+        }
+        size = 0;
+    }
+
+    /**
+     * Called after each command is encoded; writes the buffer out if the
+     * flush policy asks for it.
+     */
+    protected void endCommand() throws IOException {
+        if (flushPolicy == FlushPolicy.INSTRUCTION
+                || (flushPolicy == FlushPolicy.BUFFERED && size >= FLUSH_THRESHOLD)) {
+            flush();
+        }
+    }
+
+    private void ensureCapacity(int extra) {
+        if (size + extra > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + extra));
+        }
+    }
+
+    protected void append(byte[] bytes) {
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buffer, size, bytes.length);
+        size += bytes.length;
+    }
+
+    protected void appendByte(int value) {
+        ensureCapacity(1);
+        buffer[size++] = (byte) value;
+    }
+
+    /**
+     * Appends a name, copying ASCII characters directly and encoding anything
+     * else with the platform charset, as a FileWriter would.
+     */
+    private void appendName(String name) {
+        int length = name.length();
+        ensureCapacity(length);
+        for (int i = 0; i < length; i++) {
+            char ch = name.charAt(i);
+            if (ch >= 0x80) {
+                append(name.substring(i).getBytes(Charset.defaultCharset()));
+                return;
+            }
+            buffer[size++] = (byte) ch;
+        }
     }
 
+    /**
+     * Appends the decimal digits of a number without creating a String.
+     */
+    private void appendNumber(int number) {
+        if (number < 0) {
+            append(ascii(Integer.toString(number)));
+            return;
+        }
+        ensureCapacity(10);
+        int digits = 1;
+        for (int rest = number / 10; rest != 0; rest /= 10) {
+            digits++;
+        }
+        for (int i = size + digits - 1; i >= size; i--) {
+            buffer[i] = (byte) ('0' + number % 10);
+            number /= 10;
+        }
+        size += digits;
+    }
+
+    private static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
 }
@@ -0,0 +1,207 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Keeps the compiler running and recompiles .jack files as they are saved.
+ * Events are collected until the input folders have been quiet for a short
+ * while, so that a burst of saves results in a single rebuild. Only the
+ * files that changed are recompiled, unless the build is a whole program,
+ * and the output of deleted sources is removed.
+ */
+class WatchMode {
+
+    // How long the folders must stay quiet before a rebuild starts.
+    private static final long DEBOUNCE_MILLIS = 100;
+
+    private final CompilerOptions options;
+    private final PrintStream out;
+    private final PrintStream err;
+    private final WatchService watcher;
+    private final Map<WatchKey, Path> folders = new HashMap<>();
+    private final List<Path> singleFiles = new ArrayList<>();
+
+    private WatchMode(CompilerOptions options, PrintStream out, PrintStream err) throws IOException {
+        this.options = options;
+        this.out = out;
+        this.err = err;
+        this.watcher = FileSystems.getDefault().newWatchService();
+    }
+
+    /**
+     * Watches the input roots of the options and rebuilds on every change,
+     * until the thread is interrupted.
+     *
+     * @param options the compiler options, including the roots to watch
+     * @param out     the stream for progress output
+     * @param err     the stream for error output
+     * @throws IOException if the folders cannot be watched
+     */
+    public static void run(CompilerOptions options, PrintStream out, PrintStream err) throws IOException {
+        WatchMode watchMode = new WatchMode(options, out, err);
+        try {
+            watchMode.registerRoots();
+            watchMode.watch();
+        } finally {
+            watchMode.watcher.close();
+        }
+    }
+
+    private void registerRoots() throws IOException {
+        for (String input : options.getInputs()) {
+            Path path = Paths.get(input).toAbsolutePath().normalize();
+            if (Files.isDirectory(path)) {
+                registerFolder(path);
+            } else {
+                singleFiles.add(path);
+                register(path.getParent());
+            }
+        }
+        out.println("Watching for changes, press Ctrl+C to stop...");
+    }
+
+    /**
+     * Registers a folder, and its sub folders when compiling recursively.
+     */
+    private void registerFolder(Path folder) throws IOException {
+        if (!options.isRecursive()) {
+            register(folder);
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(folder)) {
+            for (Path path : (Iterable<Path>) paths.filter(Files::isDirectory)::iterator) {
+                register(path);
+            }
+        }
+    }
+
+    private void register(Path folder) throws IOException {
+        if (folders.containsValue(folder)) {
+            return;
+        }
+        WatchKey key = folder.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+        folders.put(key, folder);
+    }
+
+    private void watch() throws IOException {
+        try {
+            while (true) {
+                WatchKey key = watcher.take();
+                long start = System.nanoTime();
+                TreeSet<Path> changed = new TreeSet<>();
+
+                // Collect events until the folders have been quiet for a while.
+                while (key != null) {
+                    collect(key, changed);
+                    key = watcher.poll(DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS);
+                }
+
+                if (!changed.isEmpty()) {
+                    rebuild(changed, start);
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Adds the .jack files touched by the events of a key to the changed set,
+     * and starts watching new sub folders.
+     */
+    private void collect(WatchKey key, TreeSet<Path> changed) throws IOException {
+        Path folder = folders.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW || folder == null) {
+                continue;
+            }
+            Path path = folder.resolve((Path) event.context());
+            if (options.isRecursive() && event.kind() == StandardWatchEventKinds.ENTRY_CREATE
+                    && Files.isDirectory(path)) {
+                registerFolder(path);
+                continue;
+            }
+            if (path.toString().endsWith(".jack") && isWatched(path)) {
+                changed.add(path);
+            }
+        }
+        if (!key.reset()) {
+            folders.remove(key);
+        }
+    }
+
+    /**
+     * Returns whether a file belongs to the inputs: a file given by name, or
+     * any .jack file in a watched input folder.
+     */
+    private boolean isWatched(Path path) {
+        if (singleFiles.contains(path)) {
+            return true;
+        }
+        for (String input : options.getInputs()) {
+            Path root = Paths.get(input).toAbsolutePath().normalize();
+            if (Files.isDirectory(root) && path.startsWith(root)
+                    && (options.isRecursive() || root.equals(path.getParent()))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Recompiles the changed files that still exist and removes the output of
+     * the ones that were deleted.
+     */
+    private void rebuild(TreeSet<Path> changed, long start) {
+        List<File> files = new ArrayList<>();
+        for (Path path : changed) {
+            if (Files.isRegularFile(path)) {
+                files.add(path.toFile());
+            } else {
+                removeOutput(path);
+            }
+        }
+
+        if (options.isWholeProgram()) {
+            // Any change can make other subroutines reachable or not, so the
+            // whole program is built again.
+            int exitCode = Main.run(options, out, err);
+            out.printf("Rebuilt the program%s, removed %d, in %d ms%n", exitCode == 0 ? "" : " with errors",
+                    changed.size() - files.size(), (System.nanoTime() - start) / 1_000_000);
+            return;
+        }
+        int failures = files.isEmpty() ? 0 : Main.compileAll(files, options, out, err);
+        out.printf("Rebuilt %d file(s), %d failed, removed %d, in %d ms%n", files.size(), failures,
+                changed.size() - files.size(), (System.nanoTime() - start) / 1_000_000);
+    }
+
+    private void removeOutput(Path source) {
+        String sourceName = source.toString();
+        Path output = Paths.get(sourceName.substring(0, sourceName.length() - ".jack".length())
+                + options.getOutputExtension());
+        try {
+            if (Files.deleteIfExists(output)) {
+                out.println("Removed " + output + " (source deleted)");
+            }
+        } catch (IOException e) {
+            err.println("Could not remove " + output + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/**
+ * Microbenchmark comparing the scalar scan of JackLexer with the word at a
+ * time skipping of --swar on comment-heavy source.
+ *
+ * The input is a synthetic class whose subroutines each carry a long doc
+ * comment, indented line comments and blank lines around a few short
+ * statements, the way commented course and OS sources look. Both scans are
+ * checked to produce the same tokens before they are timed.
+ *
+ * Run from the project folder:
+ * javac -encoding ISO-8859-1 -d /tmp/bench *.java bench/*.java
+ * java -cp /tmp/bench LexerBenchmark [subroutines]
+ */
+class LexerBenchmark {
+
+    private static final int COMMENT_LINES = 12;
+    private static final long TARGET_NANOS = 2_000_000_000L;
+
+    public static void main(String[] args) {
+        int subroutines = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+
+        SourceBuffer source = SourceBuffer.of(commentHeavyClass(subroutines));
+        checkSameTokens(JackLexer.scan(source, false), JackLexer.scan(source, true));
+        double megabytes = source.length() / 1e6;
+        System.out.printf("%d subroutines, %.2f MB of source%n", subroutines, megabytes);
+
+        for (int pass = 1; pass <= 2; pass++) { // The first pass warms up the JIT.
+            double scalar = measure(() -> sink += JackLexer.scan(source, false).size());
+            double swar = measure(() -> sink += JackLexer.scan(source, true).size());
+            System.out.printf("pass %d: scalar %.0f MB/s, swar %.0f MB/s (%.1fx)%n",
+                    pass, megabytes / (scalar / 1e9), megabytes / (swar / 1e9), scalar / swar);
+        }
+    }
+
+    /**
+     * Returns a class with the given number of heavily commented methods.
+     */
+    private static String commentHeavyClass(int subroutines) {
+        StringBuilder text = new StringBuilder();
+        text.append("/**\n * A generated class that is mostly comments.\n */\nclass Commented {\n\n");
+        text.append("    field int count; // The number of calls so far.\n\n");
+        for (int s = 0; s < subroutines; s++) {
+            text.append("    /**\n");
+            for (int i = 0; i < COMMENT_LINES; i++) {
+                text.append("     * Line ").append(i)
+                        .append(" of the documentation of step").append(s)
+                        .append(", which explains what it does and why.\n");
+            }
+            text.append("     */\n");
+            text.append("    method int step").append(s).append("(int x) {\n");
+            text.append("        var int y;\n\n");
+            text.append("        // Scale the argument before counting it; the factor\n");
+            text.append("        // only matters for the comparison below.\n");
+            text.append("        let y = x * ").append(s % 7 + 1).append(";\n\n\n");
+            text.append("        let count = count + 1;        // One more call.\n");
+            text.append("        return y;\n");
+            text.append("    }\n\n");
+        }
+        text.append("}\n");
+        return text.toString();
+    }
+
+    private static void checkSameTokens(TokenBuffer scalar, TokenBuffer swar) {
+        if (scalar.size() != swar.size()) {
+            throw new IllegalStateException("Token counts differ: " + scalar.size() + " and " + swar.size());
+        }
+        for (int i = 0; i < scalar.size(); i++) {
+            if (scalar.type(i) != swar.type(i) || scalar.start(i) != swar.start(i)
+                    || scalar.length(i) != swar.length(i) || scalar.line(i) != swar.line(i)) {
+                throw new IllegalStateException("Token " + i + " differs");
+            }
+        }
+    }
+
+    /**
+     * Runs a scan repeatedly for about two seconds and returns the average
+     * time per scan in nanoseconds.
+     */
+    private static double measure(Runnable scan) {
+        long start = System.nanoTime();
+        long rounds = 0;
+        long elapsed;
+        do {
+            scan.run();
+            rounds++;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < TARGET_NANOS);
+        return (double) elapsed / rounds;
+    }
+
+    private static int sink;
+}
@@ -0,0 +1,164 @@
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Microbenchmark comparing the scoped SymbolTable with the previous table,
+ * which kept every variable in one set of HashMaps and copied the class
+ * scope on every reset.
+ *
+ * Each round compiles a synthetic class: it defines the statics and fields,
+ * then for every subroutine resets the table, defines a few arguments and
+ * locals and looks up a mix of local and class-level names.
+ *
+ * Run from the project folder:
+ * javac -encoding ISO-8859-1 -d /tmp/bench *.java bench/*.java
+ * java -cp /tmp/bench SymbolTableBenchmark [fields] [subroutines]
+ */
+class SymbolTableBenchmark {
+
+    private static final int LOCALS = 4;
+    private static final int LOOKUPS = 32;
+    private static final long TARGET_NANOS = 2_000_000_000L;
+
+    public static void main(String[] args) {
+        int fields = args.length > 0 ? Integer.parseInt(args[0]) : 300;
+        int subroutines = args.length > 1 ? Integer.parseInt(args[1]) : 300;
+
+        String[] classNames = names("field", fields);
+        String[] argumentNames = names("argument", LOCALS);
+        String[] localNames = names("local", LOCALS);
+        System.out.printf("%d fields, %d subroutines, %d arguments, %d locals and %d lookups per subroutine%n",
+                fields, subroutines, LOCALS, LOCALS, LOOKUPS);
+
+        for (int pass = 1; pass <= 2; pass++) { // The first pass warms up the JIT.
+            double legacy = measure(() -> legacyRound(classNames, argumentNames, localNames, subroutines));
+            double scoped = measure(() -> scopedRound(classNames, argumentNames, localNames, subroutines));
+            System.out.printf("pass %d: HashMap table %.3f ms/class, scoped table %.3f ms/class (%.1fx)%n",
+                    pass, legacy / 1e6, scoped / 1e6, legacy / scoped);
+        }
+    }
+
+    private static String[] names(String prefix, int count) {
+        String[] names = new String[count];
+        for (int i = 0; i < count; i++) {
+            names[i] = prefix + i;
+        }
+        return names;
+    }
+
+    /**
+     * Runs a round repeatedly for about two seconds and returns the average
+     * time per round in nanoseconds.
+     */
+    private static double measure(Runnable round) {
+        long start = System.nanoTime();
+        long rounds = 0;
+        long elapsed;
+        do {
+            round.run();
+            rounds++;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < TARGET_NANOS);
+        return (double) elapsed / rounds;
+    }
+
+    private static int sink;
+
+    private static void scopedRound(String[] classNames, String[] argumentNames, String[] localNames,
+            int subroutines) {
+        SymbolTable table = new SymbolTable();
+        for (int i = 0; i < classNames.length; i++) {
+            table.define(classNames[i], "int", i % 2 == 0 ? KindType.STATIC : KindType.FIELD);
+        }
+        for (int s = 0; s < subroutines; s++) {
+            table.reset();
+            for (int i = 0; i < LOCALS; i++) {
+                table.define(argumentNames[i], "int", KindType.ARG);
+                table.define(localNames[i], "int", KindType.VAR);
+            }
+            for (int i = 0; i < LOOKUPS; i++) {
+                String name = i % 2 == 0 ? localNames[i % localNames.length] : classNames[(s + i) % classNames.length];
+                sink += table.indexOf(name) + table.kindOf(name).ordinal();
+            }
+        }
+    }
+
+    private static void legacyRound(String[] classNames, String[] argumentNames, String[] localNames,
+            int subroutines) {
+        HashMapSymbolTable table = new HashMapSymbolTable();
+        for (int i = 0; i < classNames.length; i++) {
+            table.define(classNames[i], "int", i % 2 == 0 ? KindType.STATIC : KindType.FIELD);
+        }
+        for (int s = 0; s < subroutines; s++) {
+            table.reset();
+            for (int i = 0; i < LOCALS; i++) {
+                table.define(argumentNames[i], "int", KindType.ARG);
+                table.define(localNames[i], "int", KindType.VAR);
+            }
+            for (int i = 0; i < LOOKUPS; i++) {
+                String name = i % 2 == 0 ? localNames[i % localNames.length] : classNames[(s + i) % classNames.length];
+                sink += table.indexOf(name) + table.kindOf(name).ordinal();
+            }
+        }
+    }
+
+    /**
+     * The previous symbol table, kept here as the baseline of the comparison.
+     */
+    private static class HashMapSymbolTable {
+
+        private final Map<String, String> typeMap = new HashMap<>();
+        private final Map<String, KindType> kindMap = new HashMap<>();
+        private final Map<String, Integer> indexMap = new HashMap<>();
+        private final Map<KindType, Integer> kindCount = new HashMap<>();
+
+        HashMapSymbolTable() {
+            for (KindType kind : KindType.values()) {
+                kindCount.put(kind, 0);
+            }
+        }
+
+        void reset() {
+            Map<String, String> savedTypeMap = new HashMap<>();
+            Map<String, KindType> savedKindMap = new HashMap<>();
+            Map<String, Integer> savedIndexMap = new HashMap<>();
+            for (String name : typeMap.keySet()) {
+                KindType kind = kindMap.get(name);
+                if (kind == KindType.STATIC || kind == KindType.FIELD) {
+                    savedTypeMap.put(name, typeMap.get(name));
+                    savedKindMap.put(name, kindMap.get(name));
+                    savedIndexMap.put(name, indexMap.get(name));
+                }
+            }
+            typeMap.clear();
+            kindMap.clear();
+            indexMap.clear();
+            typeMap.putAll(savedTypeMap);
+            kindMap.putAll(savedKindMap);
+            indexMap.putAll(savedIndexMap);
+            kindCount.put(KindType.ARG, 0);
+            kindCount.put(KindType.VAR, 0);
+        }
+
+        void define(String name, String type, KindType kind) {
+            if (!name.matches("[a-zA-Z_][a-zA-Z0-9_]*")) {
+                throw new IllegalArgumentException("Invalid variable name: " + name);
+            }
+            if (kindMap.containsKey(name)) {
+                throw new IllegalStateException("Variable " + name + " already defined");
+            }
+            typeMap.put(name, type);
+            kindMap.put(name, kind);
+            indexMap.put(name, kindCount.get(kind));
+            kindCount.put(kind, kindCount.get(kind) + 1);
+        }
+
+        KindType kindOf(String name) {
+            return kindMap.getOrDefault(name, KindType.NONE);
+        }
+
+        int indexOf(String name) {
+            return indexMap.get(name);
+        }
+    }
+}
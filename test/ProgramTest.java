@@ -0,0 +1,135 @@
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * Compiles every program under test/programs with several sets of options,
+ * runs each build on VMRunner and checks that it prints the expected output.
+ *
+ * A program is a folder of .jack files with a Main.main, the output it must
+ * print in expected.txt, and the options to build it with in options.txt,
+ * one set per line; lines starting with # are comments. Every program is
+ * also built without options, so an optimized build is always compared with
+ * the plain one. A line starting with ! gives options whose build must stop
+ * instead, such as by overflowing the stack; a single ! means the build
+ * without options.
+ *
+ * Run from the project folder:
+ * javac -encoding ISO-8859-1 -d /tmp/test *.java test/*.java
+ * java -cp /tmp/test ProgramTest [program folder]...
+ */
+class ProgramTest {
+
+    public static void main(String[] args) throws IOException {
+        List<File> programs = new ArrayList<>();
+        if (args.length > 0) {
+            for (String arg : args) {
+                programs.add(new File(arg));
+            }
+        } else {
+            File[] folders = new File("test/programs").listFiles(File::isDirectory);
+            if (folders == null) {
+                System.out.println("No test/programs folder; run from the project folder");
+                System.exit(1);
+            }
+            Arrays.sort(folders);
+            programs.addAll(Arrays.asList(folders));
+        }
+
+        int builds = 0;
+        int failures = 0;
+        for (File program : programs) {
+            String expected = new String(Files.readAllBytes(new File(program, "expected.txt").toPath()));
+            Map<String, Boolean> optionSets = optionSets(program);
+            for (String options : optionSets.keySet()) {
+                builds++;
+                String failure = check(program, options, optionSets.get(options) ? null : expected);
+                if (failure != null) {
+                    failures++;
+                    System.out.printf("FAIL %s [%s]: %s%n", program.getName(), options, failure);
+                }
+            }
+        }
+        System.out.printf("%d programs, %d builds, %d failed%n", programs.size(), builds, failures);
+        if (failures > 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Returns the option sets to build a program with, each mapped to
+     * whether its build must stop.
+     */
+    private static Map<String, Boolean> optionSets(File program) throws IOException {
+        Map<String, Boolean> sets = new LinkedHashMap<>();
+        sets.put("", false);
+        File file = new File(program, "options.txt");
+        if (file.exists()) {
+            for (String line : Files.readAllLines(file.toPath())) {
+                line = line.trim();
+                if (line.startsWith("!")) {
+                    sets.put(line.substring(1).trim(), true);
+                } else if (!line.isEmpty() && !line.startsWith("#")) {
+                    sets.put(line, false);
+                }
+            }
+        }
+        return sets;
+    }
+
+    /**
+     * Builds a program in a scratch folder and runs it.
+     *
+     * @param expected the output the build must print, or null if it must stop
+     * @return why the build failed, or null if it printed the expected output
+     *         or stopped as it must
+     */
+    private static String check(File program, String options, String expected) throws IOException {
+        Path folder = Files.createTempDirectory("jack-test");
+        try {
+            File[] sources = program.listFiles((dir, name) -> name.endsWith(".jack"));
+            for (File source : sources) {
+                Files.copy(source.toPath(), folder.resolve(source.getName()), StandardCopyOption.REPLACE_EXISTING);
+            }
+
+            List<String> args = new ArrayList<>();
+            if (!options.isEmpty()) {
+                args.addAll(Arrays.asList(options.split("\\s+")));
+            }
+            args.add(folder.toString());
+            ByteArrayOutputStream errors = new ByteArrayOutputStream();
+            PrintStream err = new PrintStream(errors, true);
+            if (Main.run(CompilerOptions.parse(args.toArray(new String[0])),
+                    new PrintStream(OutputStream.nullOutputStream()), err) != 0) {
+                return "does not compile: " + errors;
+            }
+
+            String output;
+            try {
+                output = VMRunner.run(folder.toFile());
+            } catch (IllegalStateException e) {
+                return expected == null ? null : "stopped: " + e.getMessage();
+            }
+            if (expected == null) {
+                return "printed \"" + output + "\" instead of stopping";
+            }
+            return output.equals(expected) ? null : "printed \"" + output + "\" instead of \"" + expected + "\"";
+        } finally {
+            try (Stream<Path> paths = Files.walk(folder)) {
+                paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+    }
+}
@@ -0,0 +1,373 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A small VM emulator for the test programs. It runs the .vm files of a
+ * folder from Main.main and returns what the program printed.
+ *
+ * The OS subroutines the programs call are built in, written after the
+ * standard Jack OS: Math.abs returns -x for a negative x, so -32768 stays
+ * -32768, Math.divide divides absolute values and so returns 0 when either
+ * argument is -32768, Math.min and Math.max compare their arguments,
+ * Memory.peek and Memory.poke read and write the RAM, and
+ * Keyboard.keyPressed reads the keyboard register at 24576. A key stays
+ * pressed for one read of the register, so a program that reads it twice
+ * sees 0 the second time, as when the key is let go in between. Only the
+ * results matter, so memory is handed out without ever being reused. The
+ * stack ends where the heap starts, at 2048, as on the Hack platform.
+ */
+class VMRunner {
+
+    private static final int STACK = 256;
+    private static final int HEAP = 2048;
+    private static final int KEYBOARD = 24576;
+    private static final int STATICS = 240;
+    private static final long STEP_LIMIT = 50_000_000L;
+
+    // One VM command, with the file and function it is in.
+    private static final class Command {
+        final String[] words;
+        final String file;
+        final String function;
+
+        Command(String[] words, String file, String function) {
+            this.words = words;
+            this.file = file;
+            this.function = function;
+        }
+    }
+
+    private final List<Command> code = new ArrayList<>();
+    private final Map<String, Integer> functions = new HashMap<>();
+    private final Map<String, Integer> labels = new HashMap<>(); // Function and label to its index.
+    private final Map<String, short[]> statics = new HashMap<>();
+    private final short[] ram = new short[32768];
+    private final short[] temp = new short[8];
+    private final StringBuilder output = new StringBuilder();
+    private int sp = STACK;
+    private int lcl;
+    private int arg;
+    private int thisPointer;
+    private int thatPointer;
+    private int heap = HEAP;
+
+    private VMRunner(File folder) throws IOException {
+        File[] files = folder.listFiles((dir, name) -> name.endsWith(".vm"));
+        if (files == null) {
+            throw new IOException("Not a folder: " + folder);
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            String fileName = file.getName().substring(0, file.getName().length() - ".vm".length());
+            String function = null;
+            for (String line : Files.readAllLines(file.toPath())) {
+                int comment = line.indexOf("//");
+                String text = (comment >= 0 ? line.substring(0, comment) : line).trim();
+                if (text.isEmpty()) {
+                    continue;
+                }
+                String[] words = text.split("\\s+");
+                if (words[0].equals("function")) {
+                    function = words[1];
+                    functions.put(function, code.size());
+                } else if (words[0].equals("label")) {
+                    labels.put(function + "$" + words[1], code.size());
+                }
+                code.add(new Command(words, fileName, function));
+            }
+        }
+    }
+
+    /**
+     * Runs the program in a folder.
+     *
+     * @param folder the folder holding the .vm files of the program
+     * @return what the program printed
+     * @throws IOException if a file cannot be read
+     * @throws IllegalStateException if the program fails or runs too long
+     */
+    public static String run(File folder) throws IOException {
+        VMRunner runner = new VMRunner(folder);
+        runner.execute("Main.main");
+        return runner.output.toString();
+    }
+
+    private void execute(String entry) {
+        int pc = call(entry, 0, -1);
+        for (long steps = 0; pc >= 0; steps++) {
+            if (steps > STEP_LIMIT) {
+                throw new IllegalStateException("Step limit reached");
+            }
+            Command command = code.get(pc++);
+            String[] words = command.words;
+            switch (words[0]) {
+                case "push":
+                    push(read(command, words[1], Integer.parseInt(words[2])));
+                    break;
+                case "pop":
+                    write(command, words[1], Integer.parseInt(words[2]), pop());
+                    break;
+                case "add":
+                case "sub":
+                case "and":
+                case "or":
+                case "eq":
+                case "gt":
+                case "lt":
+                    int b = pop();
+                    int a = pop();
+                    push(arithmetic(words[0], a, b));
+                    break;
+                case "neg":
+                    push(-pop());
+                    break;
+                case "not":
+                    push(~pop());
+                    break;
+                case "label":
+                    break;
+                case "goto":
+                    pc = label(command, words[1]);
+                    break;
+                case "if-goto":
+                    if (pop() != 0) {
+                        pc = label(command, words[1]);
+                    }
+                    break;
+                case "function":
+                    for (int i = 0; i < Integer.parseInt(words[2]); i++) {
+                        push(0);
+                    }
+                    break;
+                case "call":
+                    String name = words[1];
+                    int nArgs = Integer.parseInt(words[2]);
+                    if (functions.containsKey(name)) {
+                        pc = call(name, nArgs, pc);
+                    } else {
+                        int[] args = new int[nArgs];
+                        for (int i = nArgs - 1; i >= 0; i--) {
+                            args[i] = pop();
+                        }
+                        push(os(name, args));
+                    }
+                    break;
+                case "return":
+                    int value = pop();
+                    int frame = lcl;
+                    pc = ram[frame - 5];
+                    sp = arg;
+                    push(value);
+                    thatPointer = ram[frame - 1];
+                    thisPointer = ram[frame - 2];
+                    arg = ram[frame - 3];
+                    lcl = ram[frame - 4];
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown command: " + String.join(" ", words));
+            }
+        }
+    }
+
+    private int call(String name, int nArgs, int returnAddress) {
+        Integer target = functions.get(name);
+        if (target == null) {
+            throw new IllegalStateException("Unknown function: " + name);
+        }
+        push(returnAddress);
+        push(lcl);
+        push(arg);
+        push(thisPointer);
+        push(thatPointer);
+        arg = sp - 5 - nArgs;
+        lcl = sp;
+        return target;
+    }
+
+    private int read(Command command, String segment, int index) {
+        switch (segment) {
+            case "constant":
+                return index;
+            case "temp":
+                return temp[index];
+            case "pointer":
+                return index == 0 ? thisPointer : thatPointer;
+            case "static":
+                return statics(command)[index];
+            default:
+                return load(base(segment) + index);
+        }
+    }
+
+    private void write(Command command, String segment, int index, int value) {
+        switch (segment) {
+            case "temp":
+                temp[index] = (short) value;
+                break;
+            case "pointer":
+                if (index == 0) {
+                    thisPointer = value;
+                } else {
+                    thatPointer = value;
+                }
+                break;
+            case "static":
+                statics(command)[index] = (short) value;
+                break;
+            default:
+                ram[base(segment) + index] = (short) value;
+                break;
+        }
+    }
+
+    private int base(String segment) {
+        switch (segment) {
+            case "local":
+                return lcl;
+            case "argument":
+                return arg;
+            case "this":
+                return thisPointer & 0x7FFF;
+            case "that":
+                return thatPointer & 0x7FFF;
+            default:
+                throw new IllegalStateException("Unknown segment: " + segment);
+        }
+    }
+
+    private short[] statics(Command command) {
+        return statics.computeIfAbsent(command.file, file -> new short[STATICS]);
+    }
+
+    private int label(Command command, String label) {
+        Integer target = labels.get(command.function + "$" + label);
+        if (target == null) {
+            throw new IllegalStateException("Unknown label " + label + " in " + command.function);
+        }
+        return target;
+    }
+
+    private static int arithmetic(String operation, int a, int b) {
+        switch (operation) {
+            case "add":
+                return a + b;
+            case "sub":
+                return a - b;
+            case "and":
+                return a & b;
+            case "or":
+                return a | b;
+            case "eq":
+                return a == b ? -1 : 0;
+            case "gt":
+                return a > b ? -1 : 0;
+            default:
+                return a < b ? -1 : 0;
+        }
+    }
+
+    /**
+     * Runs a subroutine of the OS and returns its result.
+     */
+    private int os(String name, int[] args) {
+        switch (name) {
+            case "Math.multiply":
+                return args[0] * args[1];
+            case "Math.divide":
+                if (args[1] == 0) {
+                    throw new IllegalStateException("Division by zero");
+                }
+                if (args[0] == Short.MIN_VALUE || args[1] == Short.MIN_VALUE) {
+                    return 0; // The OS divides absolute values, and -32768 has none.
+                }
+                return args[0] / args[1];
+            case "Math.abs":
+                return args[0] < 0 ? -args[0] : args[0];
+            case "Math.min":
+                return args[0] < args[1] ? args[0] : args[1];
+            case "Math.max":
+                return args[0] > args[1] ? args[0] : args[1];
+            case "Memory.peek":
+                return load(args[0] & 0x7FFF);
+            case "Memory.poke":
+                ram[args[0] & 0x7FFF] = (short) args[1];
+                return 0;
+            case "Memory.alloc":
+            case "Array.new":
+                if (args[0] <= 0) {
+                    throw new IllegalStateException(name + " of " + args[0] + " words");
+                }
+                return allocate(args[0]);
+            case "Memory.deAlloc":
+            case "Array.dispose":
+            case "String.dispose":
+                return 0;
+            case "String.new":
+                int string = allocate(2);
+                ram[string + 1] = (short) allocate(Math.max(args[0], 1));
+                return string;
+            case "String.appendChar":
+                int length = ram[args[0]];
+                ram[ram[args[0] + 1] + length] = (short) args[1];
+                ram[args[0]] = (short) (length + 1);
+                return args[0];
+            case "String.length":
+                return ram[args[0]];
+            case "String.charAt":
+                return ram[ram[args[0] + 1] + args[1]];
+            case "Output.printInt":
+                output.append(args[0]);
+                return 0;
+            case "Output.printChar":
+                output.append((char) args[0]);
+                return 0;
+            case "Output.printString":
+                for (int i = 0; i < ram[args[0]]; i++) {
+                    output.append((char) ram[ram[args[0] + 1] + i]);
+                }
+                return 0;
+            case "Output.println":
+                output.append('\n');
+                return 0;
+            case "Keyboard.keyPressed":
+                return load(KEYBOARD);
+            default:
+                throw new IllegalStateException("Unknown OS subroutine: " + name);
+        }
+    }
+
+    // Reads a word of RAM; a key read from the keyboard is released.
+    private int load(int address) {
+        int value = ram[address];
+        if (address == KEYBOARD) {
+            ram[KEYBOARD] = 0;
+        }
+        return value;
+    }
+
+    private int allocate(int size) {
+        int address = heap;
+        heap += size;
+        if (heap > KEYBOARD - 8192) {
+            throw new IllegalStateException("Heap overflow");
+        }
+        return address;
+    }
+
+    private void push(int value) {
+        if (sp == HEAP) {
+            throw new IllegalStateException("Stack overflow");
+        }
+        ram[sp++] = (short) value;
+    }
+
+    private int pop() {
+        return ram[--sp];
+    }
+}